@@ -0,0 +1,40 @@
+import gov.nasa.jpf.vm.Verify;
+
+/**
+ * Example of summaries of methods that register a data choice generator.
+ * Their summaries have one branch per choice, applying one registers a choice
+ * generator over the branches instead, so the search explores the same states.
+ * Compare the statistics and printed sums with a run without summaries.
+ **/
+public class BranchExample {
+  private int offset = 10;
+  private int[] options = {1, 5, 9};
+
+  private int pick(int bound) {
+    return offset + Verify.getInt(0, bound);
+  }
+
+  // the choice depends on the elements of options
+  private int pickFromList() {
+    return offset * Verify.getIntFromList(options);
+  }
+
+  public static void main(String[] args) {
+    BranchExample example = new BranchExample();
+    int sum = 0;
+
+    // the later calls apply the summary of the first one
+    for (int i = 0; i < 3; i++) {
+      sum += example.pick(1);
+    }
+
+    sum += example.pickFromList();
+    sum += example.pickFromList();
+
+    // the summary must not choose among the old elements
+    example.options[1] = 6;
+    sum += example.pickFromList();
+
+    System.out.println("sum = " + sum);
+  }
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+set -e
+
+[ -e "${JPF_HOME}" ] || JPF_HOME="${HOME}/.jpf/jpf-core"
+
+javac -cp "${JPF_HOME}/build/jpf-classes.jar" *.java
@@ -0,0 +1,16 @@
+#!/bin/sh
+
+[ -e "${JPF_HOME}" ] || JPF_HOME="${HOME}/.jpf/jpf-core"
+
+# both runs should report the same number of states and print the same sums
+${JPF_HOME}/bin/jpf  BranchExample.jpf > with-summaries.txt
+${JPF_HOME}/bin/jpf  +listener= BranchExample.jpf > without-summaries.txt
+
+grep -E "^sum = |new=" with-summaries.txt | sort > with-summaries.sums
+grep -E "^sum = |new=" without-summaries.txt | sort > without-summaries.sums
+if diff with-summaries.sums without-summaries.sums; then
+  echo "same states and results with and without summaries"
+else
+  echo "summaries changed the states or results"
+  exit 1
+fi
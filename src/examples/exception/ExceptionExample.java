@@ -6,7 +6,7 @@ public class ExceptionExample {
   }
 
   public void throwingMethod() throws Exception {
-    // throw calls native method - we can't summarise it
+    // summarised as an exceptional exit, the summary throws except again
     if(x==0) throw except;
   }
 
@@ -0,0 +1,71 @@
+/**
+ * Example of summaries matched by structure, see summary.match=structural.
+ * A summary recorded on some objects is applied to other objects that are reached
+ * the same way, as long as they alias the same way, arrays have the same length and
+ * objects that natives read are the same. Each call checks the result it would
+ * have had without summaries, JPF reports an error if a summary got it wrong.
+ **/
+public class StructuralExample {
+  static class Cell {
+    int value;
+
+    Cell(int value) {
+      this.value = value;
+    }
+  }
+
+  static class Holder {
+    String name;
+
+    Holder(String name) {
+      this.name = name;
+    }
+  }
+
+  // returns b's value after incrementing a's, which differs if a and b are the same cell
+  static int bump(Cell a, Cell b) {
+    a.value++;
+    return b.value;
+  }
+
+  static int sum(int[] values) {
+    int sum = 0;
+    for (int i = 0; i < values.length; i++) {
+      sum += values[i];
+    }
+    return sum;
+  }
+
+  // the name is only read by the String.equals native
+  static boolean isAdmin(Holder holder) {
+    return holder.name.equals("admin");
+  }
+
+  static void check(boolean ok, String what) {
+    if (!ok) {
+      throw new AssertionError(what);
+    }
+  }
+
+  public static void main(String[] args) {
+    // aliased arguments
+    check(bump(new Cell(1), new Cell(1)) == 1, "distinct cells");
+    check(bump(new Cell(1), new Cell(1)) == 1, "other distinct cells");
+    Cell cell = new Cell(1);
+    check(bump(cell, cell) == 2, "aliased cells");
+
+    // arrays of different lengths
+    check(sum(new int[]{1, 2}) == 3, "two elements");
+    check(sum(new int[]{1, 2}) == 3, "other two elements");
+    check(sum(new int[]{1, 2, 3}) == 6, "three elements");
+    check(sum(new int[]{1}) == 1, "one element");
+
+    // strings passed to natives
+    check(isAdmin(new Holder("admin")), "admin");
+    check(isAdmin(new Holder("admin")), "other admin");
+    check(!isAdmin(new Holder("guest")), "guest");
+    check(!isAdmin(new Holder(new String("admin") + "s")), "admins");
+
+    System.out.println("all structural matches gave the executed results");
+  }
+}
@@ -0,0 +1,6 @@
+#!/bin/sh
+
+[ -e "${JPF_HOME}" ] || JPF_HOME="${HOME}/.jpf/jpf-core"
+
+# should report no errors, a wrong structural match throws an AssertionError
+${JPF_HOME}/bin/jpf  StructuralExample.jpf
@@ -0,0 +1,225 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.ClassInfo;
+import gov.nasa.jpf.vm.ElementInfo;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.Heap;
+import gov.nasa.jpf.vm.MJIEnv;
+import gov.nasa.jpf.vm.ThreadInfo;
+
+
+/**
+ * Immutable form of the field and array element writes of a stored summary, grouped per target object,
+ * so that applying it takes one modifiable ElementInfo per object and raw slot writes.
+ * Objects the recorded invocation allocated and left reachable are allocated anew on every apply.
+ * Compiled once from the MethodModifications when the summary is stored.
+ */
+class ApplyPlan {
+    static final ApplyPlan EMPTY = new ApplyPlan(new Allocation[0], new TargetWrites[0], new int[0], -1);
+
+    /**
+     * An object or array to allocate, with all of its fields or elements.
+     */
+    static class Allocation {
+        final ClassInfo classInfo;
+        // all instance fields, null for arrays
+        final FieldInfo[] fields;
+        final char elementType;
+        final long[] values;
+        // index of the allocation a reference value points to, -1 for other values; null if there are none
+        final int[] newRefs;
+
+        Allocation(ClassInfo classInfo, FieldInfo[] fields, char elementType, long[] values, int[] newRefs) {
+            this.classInfo = classInfo;
+            this.fields = fields;
+            this.elementType = elementType;
+            this.values = values;
+            this.newRefs = newRefs;
+        }
+    }
+
+    static class TargetWrites {
+        // the object whose fields are written, for instance fields
+        final int objRef;
+        // the class whose static fields are written, null for instance fields
+        final ClassInfo classInfo;
+        // null if the target is an array
+        final FieldInfo[] fields;
+        // for arrays, the element indices and type, see ArrayElements
+        final int[] indices;
+        final char elementType;
+        // raw slot values, as read by MethodContext.readField or ArrayElements.read
+        final long[] values;
+        // see Allocation.newRefs
+        final int[] newRefs;
+
+        TargetWrites(int objRef, ClassInfo classInfo, FieldInfo[] fields, long[] values, int[] newRefs) {
+            this.objRef = objRef;
+            this.classInfo = classInfo;
+            this.fields = fields;
+            this.values = values;
+            this.newRefs = newRefs;
+            indices = null;
+            elementType = 0;
+        }
+
+        TargetWrites(int arrayRef, char elementType, int[] indices, long[] values, int[] newRefs) {
+            objRef = arrayRef;
+            this.elementType = elementType;
+            this.indices = indices;
+            this.values = values;
+            this.newRefs = newRefs;
+            classInfo = null;
+            fields = null;
+        }
+    }
+
+    private final Allocation[] allocations;
+    private final TargetWrites[] targets;
+    // objects the invocation locked and released again
+    private final int[] locks;
+    // index of the allocation that is returned, or -1
+    private final int returnAllocation;
+
+    ApplyPlan(Allocation[] allocations, TargetWrites[] targets, int[] locks, int returnAllocation) {
+        this.allocations = allocations;
+        this.targets = targets;
+        this.locks = locks;
+        this.returnAllocation = returnAllocation;
+    }
+
+    boolean allocates() {
+        return allocations.length > 0;
+    }
+
+    boolean returnsAllocation() {
+        return returnAllocation >= 0;
+    }
+
+    /**
+     * Allocating an object of a class, or writing a static field of a class that isn't
+     * initialized yet would have to run its {@code <clinit>}.
+     **/
+    boolean classesInitialized() {
+        for (Allocation allocation : allocations) {
+            if (!allocation.classInfo.isInitialized()) {
+                return false;
+            }
+        }
+        for (TargetWrites target : targets) {
+            if (target.classInfo != null && !target.classInfo.isInitialized()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes to objects that other threads can access are visible to them, and
+     * their scheduling points would be skipped, so they can't be applied as a summary.
+     * The same goes for the locks the invocation took: the lock counts are back where
+     * they were once it ends, which is only the case on apply if nobody else can hold them.
+     **/
+    boolean targetsThreadLocal(ThreadInfo ti, RefTranslation translation) {
+        for (TargetWrites target : targets) {
+            ElementInfo ei = target.classInfo != null ? target.classInfo.getStaticElementInfo()
+                    : ti.getElementInfo(translation.translate(target.objRef));
+            if (ei != null && ei.isShared()) {
+                return false;
+            }
+        }
+        for (int lockRef : locks) {
+            ElementInfo lock = ti.getElementInfo(translation.translate(lockRef));
+            if (lock == null || lock.isShared() || !lock.canLock(ti)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Performs the allocations and writes of the summary, on the objects that
+     * {@code translation} maps the recorded ones to.
+     *
+     * @return the objRef of the returned allocation, or MJIEnv.NULL if the summary doesn't return one
+     **/
+    int apply(ThreadInfo ti, RefTranslation translation) {
+        Heap heap = ti.getHeap();
+
+        int[] newObjects = new int[allocations.length];
+        ElementInfo[] newElementInfos = new ElementInfo[allocations.length];
+        for (int i = 0; i < allocations.length; i++) {
+            Allocation allocation = allocations[i];
+            if (allocation.fields == null) {
+                newElementInfos[i] = heap.newArray(allocation.classInfo.getName().substring(1),
+                        allocation.values.length, ti);
+            } else {
+                newElementInfos[i] = heap.newObject(allocation.classInfo, ti);
+            }
+            newObjects[i] = newElementInfos[i].getObjectRef();
+        }
+        for (int i = 0; i < allocations.length; i++) {
+            Allocation allocation = allocations[i];
+            ElementInfo ei = newElementInfos[i];
+            for (int j = 0; j < allocation.values.length; j++) {
+                boolean reference = allocation.fields == null ? isReference(allocation.elementType)
+                        : allocation.fields[j].isReference();
+                long value = translate(allocation.values, allocation.newRefs, j, newObjects, reference, translation);
+                if (allocation.fields == null) {
+                    ArrayElements.write(ei, allocation.elementType, j, value);
+                } else {
+                    writeField(ei, allocation.fields[j], value);
+                }
+            }
+        }
+
+        for (TargetWrites target : targets) {
+            ElementInfo ei;
+            if (target.classInfo != null) {
+                ei = target.classInfo.getModifiableStaticElementInfo();
+            } else {
+                ei = heap.getModifiable(translation.translate(target.objRef));
+            }
+            assert (ei != null);
+
+            long[] values = target.values;
+            FieldInfo[] fields = target.fields;
+            if (fields == null) {
+                int[] indices = target.indices;
+                for (int i = 0; i < indices.length; i++) {
+                    ArrayElements.write(ei, target.elementType, indices[i],
+                            translate(values, target.newRefs, i, newObjects, isReference(target.elementType), translation));
+                }
+            } else {
+                for (int i = 0; i < fields.length; i++) {
+                    writeField(ei, fields[i],
+                            translate(values, target.newRefs, i, newObjects, fields[i].isReference(), translation));
+                }
+            }
+        }
+
+        return returnAllocation >= 0 ? newObjects[returnAllocation] : MJIEnv.NULL;
+    }
+
+    private static long translate(long[] values, int[] newRefs, int i, int[] newObjects, boolean reference,
+                                  RefTranslation translation) {
+        if (newRefs != null && newRefs[i] >= 0) {
+            return newObjects[newRefs[i]];
+        }
+        return reference ? translation.translate((int) values[i]) : values[i];
+    }
+
+    private static boolean isReference(char elementType) {
+        return elementType == 'L' || elementType == '[';
+    }
+
+    private static void writeField(ElementInfo ei, FieldInfo fi, long value) {
+        if (fi.isReference()) {
+            ei.setReferenceField(fi, (int) value);
+        } else if (fi.getStorageSize() == 1) {
+            ei.set1SlotField(fi, (int) value);
+        } else {
+            ei.set2SlotField(fi, value);
+        }
+    }
+}
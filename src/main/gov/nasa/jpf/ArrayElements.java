@@ -0,0 +1,254 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.ElementInfo;
+
+import java.util.Arrays;
+
+
+/**
+ * Raw values of some of the elements of one array, as read or written by a
+ * recorded method, and the array's length. Values are stored like fields, see
+ * MethodContext.readField: floats and doubles as their bits, references as objRef.
+ */
+class ArrayElements {
+    private static final int INITIAL_CAPACITY = 4;
+
+    final int arrayRef;
+    // the second character of the array's type name, e.g. 'I' for int[]
+    final char elementType;
+    // an objRef can be reused for an array of another length after backtracking
+    final int length;
+
+    // the indices that have a value in ascending order, values in the same order,
+    // so that a few elements of a large array take little space
+    private int[] indices;
+    private long[] values;
+    private int size;
+
+    ArrayElements(ElementInfo array) {
+        this(array.getObjectRef(), elementType(array), array.arrayLength());
+    }
+
+    ArrayElements(int arrayRef, char elementType, int length) {
+        this.arrayRef = arrayRef;
+        this.elementType = elementType;
+        this.length = length;
+        indices = new int[INITIAL_CAPACITY];
+        values = new long[INITIAL_CAPACITY];
+    }
+
+    static char elementType(ElementInfo array) {
+        return array.getClassInfo().getName().charAt(1);
+    }
+
+    static long read(ElementInfo array, char elementType, int index) {
+        switch (elementType) {
+            case 'Z':
+                return array.getBooleanElement(index) ? 1 : 0;
+            case 'B':
+                return array.getByteElement(index);
+            case 'C':
+                return array.getCharElement(index);
+            case 'S':
+                return array.getShortElement(index);
+            case 'I':
+                return array.getIntElement(index);
+            case 'J':
+                return array.getLongElement(index);
+            case 'F':
+                return Float.floatToIntBits(array.getFloatElement(index));
+            case 'D':
+                return Double.doubleToLongBits(array.getDoubleElement(index));
+            default:
+                return array.getReferenceElement(index);
+        }
+    }
+
+    static void write(ElementInfo array, char elementType, int index, long value) {
+        switch (elementType) {
+            case 'Z':
+                array.setBooleanElement(index, value != 0);
+                break;
+            case 'B':
+                array.setByteElement(index, (byte) value);
+                break;
+            case 'C':
+                array.setCharElement(index, (char) value);
+                break;
+            case 'S':
+                array.setShortElement(index, (short) value);
+                break;
+            case 'I':
+                array.setIntElement(index, (int) value);
+                break;
+            case 'J':
+                array.setLongElement(index, value);
+                break;
+            case 'F':
+                array.setFloatElement(index, Float.intBitsToFloat((int) value));
+                break;
+            case 'D':
+                array.setDoubleElement(index, Double.longBitsToDouble(value));
+                break;
+            default:
+                array.setReferenceElement(index, (int) value);
+        }
+    }
+
+    /**
+     * Hash over the elements {@code lo..hi} of the array, as they are now.
+     **/
+    static long hash(ElementInfo array, char elementType, int lo, int hi) {
+        long h = HASH_SEED;
+        for (int i = lo; i <= hi; i++) {
+            h = mix(h, read(array, elementType, i));
+        }
+        return h;
+    }
+
+    private static final long HASH_SEED = 0xcbf29ce484222325L;
+
+    private static long mix(long h, long value) {
+        h ^= value;
+        h *= 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    // the position of index in indices, or -(insertion point) - 1
+    private int position(int index) {
+        return Arrays.binarySearch(indices, 0, size, index);
+    }
+
+    boolean contains(int index) {
+        return position(index) >= 0;
+    }
+
+    long get(int index) {
+        return values[position(index)];
+    }
+
+    void put(int index, long value) {
+        int pos = position(index);
+        if (pos >= 0) {
+            values[pos] = value;
+            return;
+        }
+        pos = -pos - 1;
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(indices, pos, indices, pos + 1, size - pos);
+        System.arraycopy(values, pos, values, pos + 1, size - pos);
+        indices[pos] = index;
+        values[pos] = value;
+        size++;
+    }
+
+    void putIfAbsent(int index, long value) {
+        if (!contains(index)) {
+            put(index, value);
+        }
+    }
+
+    void putAll(ArrayElements other, boolean overwrite) {
+        for (int i = 0; i < other.size; i++) {
+            if (overwrite) {
+                put(other.indices[i], other.values[i]);
+            } else {
+                putIfAbsent(other.indices[i], other.values[i]);
+            }
+        }
+    }
+
+    /**
+     * The first index at or after {@code from} that has a value, or -1.
+     **/
+    int nextIndex(int from) {
+        int pos = position(from);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return pos < size ? indices[pos] : -1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Compacts the values into ranges of consecutive indices with a hash over
+     * each range, which is what a MethodContext keeps once it's stored.
+     * Without values there is one empty range, which still compares the length.
+     **/
+    ArrayRange[] toRanges() {
+        if (size == 0) {
+            return new ArrayRange[]{new ArrayRange(arrayRef, elementType, length, 0, -1, HASH_SEED)};
+        }
+        ArrayRange[] ranges = new ArrayRange[countRanges()];
+        int r = 0;
+        int start = 0;
+        for (int i = 1; i <= size; i++) {
+            if (i == size || indices[i] != indices[i - 1] + 1) {
+                long h = HASH_SEED;
+                for (int j = start; j < i; j++) {
+                    h = mix(h, values[j]);
+                }
+                ranges[r++] = new ArrayRange(arrayRef, elementType, length, indices[start], indices[i - 1], h);
+                start = i;
+            }
+        }
+        return ranges;
+    }
+
+    private int countRanges() {
+        int count = 1;
+        for (int i = 1; i < size; i++) {
+            if (indices[i] != indices[i - 1] + 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("@").append(Integer.toHexString(arrayRef)).append("[").append(length).append("]{");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "" : ",").append(indices[i]).append("=").append(values[i]);
+        }
+        sb.append("}");
+        return sb.toString();
+    }
+
+    /**
+     * Elements {@code lo..hi} of an array that a stored summary depends on.
+     */
+    static class ArrayRange {
+        final int arrayRef;
+        final char elementType;
+        final int length;
+        final int lo;
+        final int hi;
+        final long hash;
+
+        ArrayRange(int arrayRef, char elementType, int length, int lo, int hi, long hash) {
+            this.arrayRef = arrayRef;
+            this.elementType = elementType;
+            this.length = length;
+            this.lo = lo;
+            this.hi = hi;
+            this.hash = hash;
+        }
+
+        boolean matches(ElementInfo array) {
+            return array != null && array.arrayLength() == length && hash(array, elementType, lo, hi) == hash;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + Integer.toHexString(arrayRef) + "[" + lo + ".." + hi + "/" + length + "]#" + Long.toHexString(hash);
+        }
+    }
+}
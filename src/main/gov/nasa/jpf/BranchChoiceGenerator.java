@@ -0,0 +1,26 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.jvm.bytecode.JVMInvokeInstruction;
+import gov.nasa.jpf.vm.choice.IntIntervalGenerator;
+
+
+/**
+ * Registered in place of the data choice generator of a summarized method, it
+ * chooses the index of the branch of the summary that is applied. Its choices lead
+ * to the same successor states as the choices of the original choice generator.
+ */
+class BranchChoiceGenerator extends IntIntervalGenerator {
+    // the invocation that is executed again once a branch is chosen
+    final JVMInvokeInstruction call;
+    final MethodSummary summary;
+
+    BranchChoiceGenerator(JVMInvokeInstruction call, MethodSummary summary) {
+        super("summaryBranch", 0, summary.branches.length - 1);
+        this.call = call;
+        this.summary = summary;
+    }
+
+    MethodSummary getBranch() {
+        return summary.branches[getNextChoice()];
+    }
+}
@@ -0,0 +1,165 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.jvm.bytecode.*;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.Instruction;
+import gov.nasa.jpf.vm.StackFrame;
+import gov.nasa.jpf.vm.Types;
+
+
+/**
+ * The outcome of a conditional branch on an int field value that a recorded method read,
+ * see summary.predicates. If the only use of a read is the comparison right after it,
+ * with a constant or a local variable, the method depends on the outcome and not on the
+ * value, so the context keeps the comparison instead of the value.
+ */
+class BranchCondition {
+    // negated by flipping the lowest bit
+    static final int EQ = 0;
+    static final int NE = 1;
+    static final int LT = 2;
+    static final int GE = 3;
+    static final int GT = 4;
+    static final int LE = 5;
+    private static final String[] NAMES = {"==", "!=", "<", ">=", ">", "<="};
+    // the comparison with the operands swapped
+    private static final int[] SWAPPED = {EQ, NE, GT, LE, LT, GE};
+
+    final int op;
+    final int operand;
+
+    BranchCondition(int op, int operand) {
+        this.op = op;
+        this.operand = operand;
+    }
+
+    boolean holds(int value) {
+        switch (op) {
+            case EQ:
+                return value == operand;
+            case NE:
+                return value != operand;
+            case LT:
+                return value < operand;
+            case GE:
+                return value >= operand;
+            case GT:
+                return value > operand;
+            default:
+                return value <= operand;
+        }
+    }
+
+    static boolean appliesTo(FieldInfo fi) {
+        switch (fi.getTypeCode()) {
+            case Types.T_INT:
+            case Types.T_SHORT:
+            case Types.T_BYTE:
+            case Types.T_CHAR:
+            case Types.T_BOOLEAN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * The condition that the value {@code read} has just pushed onto the operand stack of
+     * {@code frame} fulfils, or null if the next instructions use it in another way.
+     **/
+    static BranchCondition of(Instruction read, StackFrame frame) {
+        int value = frame.peek();
+        Instruction next = read.getNext();
+        if (next == null) {
+            return null;
+        }
+        int op = unaryOp(next);
+        if (op >= 0) {
+            return fulfilled(op, value, 0);
+        }
+        op = compareOp(next);
+        if (op >= 0) {
+            // the value is the right operand, the left one was pushed before it
+            return fulfilled(SWAPPED[op], value, frame.peek(1));
+        }
+        Integer pushed = pushedValue(next, frame);
+        if (pushed != null && next.getNext() != null) {
+            op = compareOp(next.getNext());
+            if (op >= 0) {
+                return fulfilled(op, value, pushed);
+            }
+        }
+        return null;
+    }
+
+    private static BranchCondition fulfilled(int op, int value, int operand) {
+        BranchCondition condition = new BranchCondition(op, operand);
+        return condition.holds(value) ? condition : new BranchCondition(op ^ 1, operand);
+    }
+
+    private static int unaryOp(Instruction insn) {
+        if (insn instanceof IFEQ) {
+            return EQ;
+        } else if (insn instanceof IFNE) {
+            return NE;
+        } else if (insn instanceof IFLT) {
+            return LT;
+        } else if (insn instanceof IFGE) {
+            return GE;
+        } else if (insn instanceof IFGT) {
+            return GT;
+        } else if (insn instanceof IFLE) {
+            return LE;
+        }
+        return -1;
+    }
+
+    private static int compareOp(Instruction insn) {
+        if (insn instanceof IF_ICMPEQ) {
+            return EQ;
+        } else if (insn instanceof IF_ICMPNE) {
+            return NE;
+        } else if (insn instanceof IF_ICMPLT) {
+            return LT;
+        } else if (insn instanceof IF_ICMPGE) {
+            return GE;
+        } else if (insn instanceof IF_ICMPGT) {
+            return GT;
+        } else if (insn instanceof IF_ICMPLE) {
+            return LE;
+        }
+        return -1;
+    }
+
+    // the value that insn will push, if it pushes a constant or a local variable
+    private static Integer pushedValue(Instruction insn, StackFrame frame) {
+        if (insn instanceof ICONST) {
+            return ((ICONST) insn).getValue();
+        } else if (insn instanceof BIPUSH) {
+            return ((BIPUSH) insn).getValue();
+        } else if (insn instanceof SIPUSH) {
+            return ((SIPUSH) insn).getValue();
+        } else if (insn instanceof ILOAD) {
+            return frame.getLocalVariable(((ILOAD) insn).getLocalVariableIndex());
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BranchCondition that = (BranchCondition) o;
+        return op == that.op && operand == that.operand;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * op + operand;
+    }
+
+    @Override
+    public String toString() {
+        return NAMES[op] + " " + operand;
+    }
+}
@@ -0,0 +1,116 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.ChoiceGenerator;
+
+import java.util.BitSet;
+
+
+/**
+ * A data choice generator that was registered while methods were being recorded.
+ * The methods that were on the recording stack at that point are recorded once per
+ * choice: the search explores the choices one after the other from the same state,
+ * and every time it backtracks to that state the recording stack is restored from a
+ * copy. Once all choices have been explored, each method whose recording completed in
+ * every branch gets a summary with one branch per choice.
+ */
+class BranchPoint {
+    final int stateId;
+    final int depth;
+    final int threadId;
+    final ChoiceGenerator<?> cg;
+
+    // the recordings of the thread when the choice generator was registered
+    private final RecordingStack stack;
+    private final BitSet recording;
+
+    // per frame of the stack and branch, what the completed recording found, null until then
+    private final MethodContext[][] contexts;
+    private final MethodModifications[][] mods;
+    // the choice that led to each branch
+    private final Object[] choices;
+    private int branch;
+
+    BranchPoint(int stateId, int depth, int threadId, ChoiceGenerator<?> cg, RecordingStack stack, BitSet recording) {
+        this.stateId = stateId;
+        this.depth = depth;
+        this.threadId = threadId;
+        this.cg = cg;
+        this.recording = (BitSet) recording.clone();
+        stack.markBranched(this);
+        this.stack = stack.copy();
+
+        int branches = cg.getTotalNumberOfChoices();
+        contexts = new MethodContext[this.stack.size()][branches];
+        mods = new MethodModifications[this.stack.size()][branches];
+        choices = new Object[branches];
+    }
+
+    /**
+     * A fresh copy of the recordings for the next branch, or null if all choices are explored.
+     **/
+    RecordingStack nextBranch() {
+        if (!cg.hasMoreChoices() || branch + 1 >= choices.length) {
+            return null;
+        }
+        branch++;
+        return stack.copy();
+    }
+
+    BitSet getRecording() {
+        return (BitSet) recording.clone();
+    }
+
+    /**
+     * Takes the result of a recording of the frame at {@code depth} in the current branch.
+     **/
+    void complete(int depth, MethodContext context, MethodModifications branchMods) {
+        int frame = stack.indexOf(depth);
+        contexts[frame][branch] = context;
+        mods[frame][branch] = branchMods;
+        choices[branch] = cg.getNextChoice();
+    }
+
+    int size() {
+        return stack.size();
+    }
+
+    int getMethodId(int frame) {
+        return stack.get(frame).methodId;
+    }
+
+    /**
+     * True if the frame is recorded, and its recording completed in every branch.
+     **/
+    boolean isComplete(int frame) {
+        if (!stack.get(frame).recording) {
+            return false;
+        }
+        for (MethodModifications branchMods : mods[frame]) {
+            if (branchMods == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The union of what the branches of the frame read, they all started in the same state.
+     **/
+    MethodContext getContext(int frame) {
+        // nothing is filtered out, a write in one branch doesn't happen in the others
+        MethodModifications none = new MethodModifications(new Object[0]);
+        MethodContext context = contexts[frame][0];
+        for (int i = 1; i < contexts[frame].length; i++) {
+            context.addContextFields(contexts[frame][i], none);
+        }
+        return context;
+    }
+
+    MethodModifications[] getBranches(int frame) {
+        return mods[frame];
+    }
+
+    Object[] getChoices() {
+        return choices;
+    }
+}
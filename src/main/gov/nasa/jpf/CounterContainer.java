@@ -1,23 +1,30 @@
 package gov.nasa.jpf;
 
-import java.util.HashMap;
-import java.util.Map;
-
 
 /**
  * Wrapper class for maintaining statistics about the methods that have/haven't been recorded.
  */
 class CounterContainer {
-    private Map<String, MethodCounter> counterMap = new HashMap<>();
+    private final MethodIdRegistry methodIds;
+    private MethodTable<MethodCounter> counterMap = new MethodTable<>();
+    private int numberOfUniqueMethods;
+
+    CounterContainer(MethodIdRegistry methodIds) {
+        this.methodIds = methodIds;
+    }
 
-    int getAttemptedMatchCount(String methodName) {
-        return counterMap.get(methodName).attemptedMatchCount;
+    int getAttemptedMatchCount(int methodId) {
+        return counterMap.get(methodId).attemptedMatchCount;
     }
 
     String getMethodStatistics() {
         StringBuilder methodStats = new StringBuilder();
         methodStats.append("{\"methodStats\":[ ");
-        for (MethodCounter counter : counterMap.values()) {
+        for (int methodId = 0; methodId < counterMap.size(); methodId++) {
+            MethodCounter counter = counterMap.get(methodId);
+            if (counter == null) {
+                continue;
+            }
             methodStats.append(counter);
             methodStats.append(",");
         }
@@ -29,57 +36,67 @@ class CounterContainer {
     }
 
     int getNumberOfRecordedMethods() {
-        return (int) counterMap.values().stream().filter(MethodCounter::isRecorded).count();
+        int recorded = 0;
+        for (int methodId = 0; methodId < counterMap.size(); methodId++) {
+            MethodCounter counter = counterMap.get(methodId);
+            if (counter != null && counter.isRecorded()) {
+                recorded++;
+            }
+        }
+        return recorded;
     }
 
     int getNumberOfUniqueMethods() {
-        return counterMap.size();
+        return numberOfUniqueMethods;
     }
 
-    void countInterruptedRecording(String methodName, String reason) {
-        MethodCounter counter = counterMap.get(methodName);
+    void countInterruptedRecording(int methodId, String reason) {
+        MethodCounter counter = counterMap.get(methodId);
         if (counter.reasonForInterruption.equals(""))
             counter.reasonForInterruption = reason;
     }
 
-    void overrideReasonForInterruption(String methodName) {
-        counterMap.get(methodName).reasonForInterruption = "transition or lock";
+    void overrideReasonForInterruption(int methodId) {
+        counterMap.get(methodId).reasonForInterruption = "transition or lock";
     }
 
-    void countAttemptedSummaryMatch(String methodName) {
-        counterMap.get(methodName).attemptedMatchCount++;
+    void countAttemptedSummaryMatch(int methodId) {
+        counterMap.get(methodId).attemptedMatchCount++;
     }
 
-    void addFailedMatchCount(String methodName) {
-        counterMap.get(methodName).failedMatchCount++;
+    void addFailedMatchCount(int methodId) {
+        counterMap.get(methodId).failedMatchCount++;
     }
 
-    void addMatchedArgumentsCount(String methodName) {
-        counterMap.get(methodName).attemptedMatchCount = 0;
-        counterMap.get(methodName).argsMatchCount++;
+    void addMatchedArgumentsCount(int methodId) {
+        counterMap.get(methodId).attemptedMatchCount = 0;
+        counterMap.get(methodId).argsMatchCount++;
     }
 
-    void addTotalCalls(String methodName) {
-        counterMap.get(methodName).totalCalls++;
+    void addTotalCalls(int methodId) {
+        counterMap.get(methodId).totalCalls++;
     }
 
-    void addMethodInvocation(String methodName, int numberOfInstructions) {
-        if (!counterMap.containsKey(methodName)) {
-            counterMap.put(methodName, new MethodCounter(methodName));
-            counterMap.get(methodName).instructionCount = numberOfInstructions;
+    void addMethodInvocation(int methodId, int numberOfInstructions) {
+        MethodCounter counter = counterMap.get(methodId);
+        if (counter == null) {
+            counter = new MethodCounter(methodIds.getName(methodId));
+            counter.instructionCount = numberOfInstructions;
+            counterMap.put(methodId, counter);
+            numberOfUniqueMethods++;
         }
-        counterMap.get(methodName).totalCalls++;
+        counter.totalCalls++;
     }
 
-    void addWriteCount(String methodName) {
-        counterMap.get(methodName).writeCount++;
+    void addWriteCount(int methodId) {
+        counterMap.get(methodId).writeCount++;
     }
 
-    void addReadCount(String methodName) {
-        counterMap.get(methodName).readCount++;
+    void addReadCount(int methodId) {
+        counterMap.get(methodId).readCount++;
     }
 
-    void addRecordedMethod(String methodName) {
-        counterMap.get(methodName).recorded = true;
+    void addRecordedMethod(int methodId) {
+        counterMap.get(methodId).recorded = true;
     }
 }
@@ -0,0 +1,78 @@
+package gov.nasa.jpf;
+
+import java.util.List;
+
+/**
+ * Strategies for choosing which summary of a method gives way
+ * when the method has reached its summary capacity.
+ */
+enum EvictionPolicy {
+    // never evict, a full method stops storing summaries
+    NONE {
+        @Override
+        int selectVictim(List<MethodSummary> summaries, long now) {
+            return -1;
+        }
+    },
+    // evict the summary that was matched longest ago
+    LRU {
+        @Override
+        int selectVictim(List<MethodSummary> summaries, long now) {
+            int victim = 0;
+            for (int i = 1; i < summaries.size(); i++) {
+                if (summaries.get(i).lastUsed < summaries.get(victim).lastUsed) {
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+    },
+    // evict the summary with the fewest matches, the oldest one on ties
+    LFU {
+        @Override
+        int selectVictim(List<MethodSummary> summaries, long now) {
+            int victim = 0;
+            for (int i = 1; i < summaries.size(); i++) {
+                if (summaries.get(i).hits < summaries.get(victim).hits) {
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+    },
+    // evict the summary with the fewest matches per lookup since it was stored,
+    // so that old summaries can't live off hits from long ago
+    HITRATE {
+        @Override
+        int selectVictim(List<MethodSummary> summaries, long now) {
+            int victim = 0;
+            double lowestRate = hitRate(summaries.get(0), now);
+            for (int i = 1; i < summaries.size(); i++) {
+                double rate = hitRate(summaries.get(i), now);
+                if (rate < lowestRate) {
+                    lowestRate = rate;
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+
+        private double hitRate(MethodSummary summary, long now) {
+            return summary.hits / (double) (now - summary.created + 1);
+        }
+    };
+
+    /**
+     * Returns the index of the summary to evict, or -1 if nothing should be evicted.
+     * {@code now} is the logical time of the container, advanced on every lookup.
+     **/
+    abstract int selectVictim(List<MethodSummary> summaries, long now);
+
+    static EvictionPolicy fromString(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new JPFConfigException("unknown summary.eviction policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.jvm.bytecode.*;
+import gov.nasa.jpf.vm.Instruction;
+import gov.nasa.jpf.vm.MethodInfo;
+import gov.nasa.jpf.vm.Types;
+import gov.nasa.jpf.vm.bytecode.LocalVariableInstruction;
+
+import java.util.Arrays;
+
+
+/**
+ * Per argument of a method, whether its code loads it from its local variable slot anywhere.
+ * Arguments that are never loaded can't affect what the method does, so they are left out
+ * of its contexts. The scan is done once per method id.
+ */
+class LoadedArguments {
+    private final MethodIdRegistry methodIds;
+    private final MethodTable<boolean[]> loaded = new MethodTable<>();
+
+    LoadedArguments(MethodIdRegistry methodIds) {
+        this.methodIds = methodIds;
+    }
+
+    boolean[] get(int methodId) {
+        boolean[] args = loaded.get(methodId);
+        if (args == null) {
+            args = scan(methodIds.getMethodInfo(methodId));
+            loaded.put(methodId, args);
+        }
+        return args;
+    }
+
+    /**
+     * Native methods, methods with a native peer and methods without code are assumed
+     * to read all of their arguments, their bytecode isn't what runs.
+     **/
+    static boolean[] scan(MethodInfo mi) {
+        byte[] argTypes = mi.getArgumentTypes();
+        boolean[] loaded = new boolean[argTypes.length];
+        Instruction[] code = mi.getInstructions();
+        if (mi.isNative() || mi.isMJI() || code == null) {
+            Arrays.fill(loaded, true);
+            return loaded;
+        }
+
+        // the local variable slot of each argument, after the receiver
+        int[] argOfSlot = new int[1 + 2 * argTypes.length];
+        Arrays.fill(argOfSlot, -1);
+        int slot = mi.isStatic() ? 0 : 1;
+        for (int i = 0; i < argTypes.length; i++) {
+            argOfSlot[slot] = i;
+            slot += (argTypes[i] == Types.T_LONG || argTypes[i] == Types.T_DOUBLE) ? 2 : 1;
+        }
+        for (Instruction insn : code) {
+            // IINC reads the slot before it writes it, stores only write it
+            if (insn instanceof ILOAD || insn instanceof LLOAD || insn instanceof FLOAD || insn instanceof DLOAD
+                    || insn instanceof ALOAD || insn instanceof IINC) {
+                int index = ((LocalVariableInstruction) insn).getLocalVariableIndex();
+                if (index < argOfSlot.length && argOfSlot[index] >= 0) {
+                    loaded[argOfSlot[index]] = true;
+                }
+            }
+        }
+        return loaded;
+    }
+}
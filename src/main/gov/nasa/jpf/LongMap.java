@@ -0,0 +1,158 @@
+package gov.nasa.jpf;
+
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing hash map from primitive long keys to non-null values.
+ * Used to key fields by their packed (object, storage offset) pair, so that
+ * tracking a field access neither allocates nor risks merging distinct fields.
+ * Entries can't be removed, only the whole map can be cleared.
+ */
+class LongMap<V> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    LongMap() {
+        keys = new long[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Key of an instance field, or of a static field if {@code objectId} identifies the class.
+     */
+    static long fieldKey(int objectId, int storageOffset) {
+        return ((long) objectId << 32) | (storageOffset & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        return (V) values[slot(key)];
+    }
+
+    boolean containsKey(long key) {
+        return values[slot(key)] != null;
+    }
+
+    void put(long key, V value) {
+        int i = slot(key);
+        if (values[i] == null) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+                i = slot(key);
+            }
+            keys[i] = key;
+            size++;
+        }
+        values[i] = value;
+    }
+
+    void putIfAbsent(long key, V value) {
+        if (!containsKey(key)) {
+            put(key, value);
+        }
+    }
+
+    void putAll(LongMap<V> other, boolean overwrite) {
+        for (int i = other.nextIndex(0); i >= 0; i = other.nextIndex(i + 1)) {
+            if (overwrite) {
+                put(other.keyAt(i), other.valueAt(i));
+            } else {
+                putIfAbsent(other.keyAt(i), other.valueAt(i));
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    void clear() {
+        if (size > 0) {
+            Arrays.fill(values, null);
+            size = 0;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Index of the first entry at or after {@code from}, or -1.
+     * Iterate with {@code for (int i = map.nextIndex(0); i >= 0; i = map.nextIndex(i + 1))}.
+     */
+    int nextIndex(int from) {
+        for (int i = from; i < values.length; i++) {
+            if (values[i] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    long keyAt(int index) {
+        return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        LongMap<?> that = (LongMap<?>) o;
+        if (size != that.size) {
+            return false;
+        }
+        for (int i = nextIndex(0); i >= 0; i = nextIndex(i + 1)) {
+            if (!values[i].equals(that.get(keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 0;
+        for (int i = nextIndex(0); i >= 0; i = nextIndex(i + 1)) {
+            result += Long.hashCode(keys[i]) ^ values[i].hashCode();
+        }
+        return result;
+    }
+}
@@ -2,150 +2,840 @@ package gov.nasa.jpf;
 
 import gov.nasa.jpf.vm.ClassInfo;
 import gov.nasa.jpf.vm.ElementInfo;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.MJIEnv;
+import gov.nasa.jpf.vm.MethodInfo;
+import gov.nasa.jpf.vm.StackFrame;
+import gov.nasa.jpf.vm.ThreadInfo;
+import gov.nasa.jpf.vm.Types;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 class MethodContext {
 
     private Object[] params;
-    private boolean runningAlone;
+    // params as raw stack slot values, see rawValue, so matching doesn't need boxed arguments
+    private long[] argValues;
+    // arguments that are object references, their params hold the objRef
+    private boolean[] referenceArgs;
+    // arguments the method loads, see LoadedArguments, null if it loads all.
+    // The others are dropped from params, they never affect a match
+    private boolean[] loadedArgs;
 
-    private ElementInfo calleeObject;
-    private HashMap<Integer, DependentFieldData> dependentFields;
-    private HashMap<String, DependentFieldData> dependentStaticFields;
+    // objects are kept as their objRef and looked up in the current heap when matching,
+    // ElementInfos are replaced when an object is modified or the state is restored
+    private int calleeRef;
+    // keyed by LongMap.fieldKey of the object reference and the field's storage offset
+    private LongMap<DependentFieldData> dependentFields;
+    // keyed by LongMap.fieldKey of the class id and the field's storage offset
+    private LongMap<DependentFieldData> dependentStaticFields;
+    // array elements read while recording, keyed by the array's objRef
+    private LongMap<ArrayElements> arrayReads;
+    // the compacted arrayReads once the context is stored in a summary
+    private List<ArrayElements.ArrayRange> arrayRanges;
+    // objects whose identity a native method observed, e.g. through their identity hash code
+    private LongMap<Boolean> identities;
+    // objects passed to native methods as receiver or argument. The natives may read their
+    // contents without the reads being recorded, so structural and detached matches keep
+    // them the same objects, like the objects a matching by identity compares
+    private LongMap<Boolean> nativeOperands;
+    // the classes whose code ran during the invocation, keyed by their unique id.
+    // A SummaryStore drops the summary once one of their class files changes
+    private LongMap<ClassInfo> codeClasses;
+    // for contexts read from a SummaryStore, the class files they were checked against
+    private List<String> storedClassFiles;
+
+    // set if the invocation never consulted its receiver, the context then
+    // matches any receiver of this class, see detachReceiver
+    private ClassInfo receiverClass;
+
+    // how the invocation reached the objects it read from its receiver and reference arguments,
+    // null unless the context is matched structurally, see captureStructure
+    private StructureEdge[] structure;
+    // the other objects the summary refers to, they have to be the same in a structural
+    // match, and differ from the receiver of a detached one
+    private int[] pinned;
+
+    private static final int RECEIVER = -1;
+    private static final int FIELD = -2;
+
+    /**
+     * An object the invocation reached: its receiver, a reference argument,
+     * or the value of a reference field it read from an object reached earlier.
+     */
+    private static class StructureEdge {
+        // RECEIVER, FIELD or the index of the argument
+        final int arg;
+        // for FIELD edges
+        final int sourceRef;
+        final FieldInfo fieldInfo;
+        final int objRef;
+        // the invocation may dispatch on the object, which depends on its class
+        final ClassInfo classInfo;
+
+        StructureEdge(int arg, int sourceRef, FieldInfo fieldInfo, int objRef, ClassInfo classInfo) {
+            this.arg = arg;
+            this.sourceRef = sourceRef;
+            this.fieldInfo = fieldInfo;
+            this.objRef = objRef;
+            this.classInfo = classInfo;
+        }
+    }
 
     private class DependentFieldData {
-        String fieldName;
+        FieldInfo fieldInfo;
         // for non-static fields
-        ElementInfo sourceObject;
-        Object previousValue;
-        // only needed/valid for Static fields
+        int sourceRef;
+        // the raw field slot(s), see readField
+        long previousValue;
+        // for static fields, the declaring class. ClassInfos outlive backtracking,
+        // its static ElementInfo is looked up in the current state when matching
         ClassInfo classInfo;
+        // the comparisons the value was only used in, see BranchCondition,
+        // null if the invocation depends on the value itself
+        List<BranchCondition> conditions;
 
         // for non-static fields
-        DependentFieldData(String fieldName, ElementInfo ei, Object previousValue) {
-            this.fieldName = fieldName;
-            sourceObject = ei;
+        DependentFieldData(FieldInfo fi, int objRef, long previousValue) {
+            fieldInfo = fi;
+            sourceRef = objRef;
             this.previousValue = previousValue;
         }
 
         // for static fields
-        DependentFieldData(String fieldName, ClassInfo ci, Object previousValue) {
-            this.fieldName = fieldName;
+        DependentFieldData(FieldInfo fi, ClassInfo ci, long previousValue) {
+            fieldInfo = fi;
             classInfo = ci;
             this.previousValue = previousValue;
         }
 
-        public String toString() {
-            return sourceObject.toString() + " " + previousValue.toString();
+        DependentFieldData copy() {
+            DependentFieldData copy = classInfo == null ? new DependentFieldData(fieldInfo, sourceRef, previousValue)
+                    : new DependentFieldData(fieldInfo, classInfo, previousValue);
+            if (conditions != null) {
+                copy.conditions = new ArrayList<>(conditions);
+            }
+            return copy;
         }
-    }
 
-    public MethodContext(Object[] args, boolean runningAlone) {
-        this.runningAlone = runningAlone;
-        params = args;
-        for (int i = 0; i < params.length; i++) {
-            if (params[i] instanceof ElementInfo) {
-                ElementInfo ei = (ElementInfo) params[i];
-                if (ei.isStringObject()) {
-                    params[i] = ei.asString();
+        /**
+         * Adds another use of the value, a comparison, or any other use if {@code condition} is null.
+         **/
+        void addUse(BranchCondition condition) {
+            if (conditions == null) {
+                return;
+            }
+            if (condition == null) {
+                conditions = null;
+            } else if (!conditions.contains(condition)) {
+                conditions.add(condition);
+            }
+        }
+
+        void addUses(DependentFieldData other) {
+            if (other.conditions == null) {
+                addUse(null);
+                return;
+            }
+            for (BranchCondition condition : other.conditions) {
+                addUse(condition);
+            }
+        }
+
+        boolean matches(ElementInfo ei, RefTranslation translation) {
+            if (conditions != null) {
+                int value = (int) readField(ei, fieldInfo);
+                for (BranchCondition condition : conditions) {
+                    if (!condition.holds(value)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            long expected = fieldInfo.isReference() ? translation.translate((int) previousValue) : previousValue;
+            return readField(ei, fieldInfo) == expected;
+        }
+
+        String valueString() {
+            if (conditions != null) {
+                StringBuilder sb = new StringBuilder();
+                for (BranchCondition condition : conditions) {
+                    sb.append(sb.length() == 0 ? "" : " && ").append(condition);
                 }
+                return sb.toString();
             }
+            return valueToString(fieldInfo, previousValue);
+        }
+
+        public String toString() {
+            Object source = classInfo == null ? "@" + Integer.toHexString(sourceRef) : classInfo.getName();
+            return source + " " + valueString();
+        }
+    }
+
+    /**
+     * Reads the raw storage of a field without boxing: one slot fields
+     * (including references) as int, two slot fields as long.
+     **/
+    static long readField(ElementInfo ei, FieldInfo fi) {
+        if (fi.getStorageSize() == 1) {
+            return ei.get1SlotField(fi);
         }
-        dependentFields = new HashMap<>();
-        dependentStaticFields = new HashMap<>();
+        return ei.get2SlotField(fi);
     }
 
-    MethodContext(ElementInfo calleeObject, Object[] args, boolean runningAlone) {
-        this.runningAlone = runningAlone;
-        this.calleeObject = calleeObject;
+    static String valueToString(FieldInfo fi, long value) {
+        switch (fi.getTypeCode()) {
+            case Types.T_BOOLEAN:
+                return String.valueOf(value != 0);
+            case Types.T_CHAR:
+                return String.valueOf((char) value);
+            case Types.T_FLOAT:
+                return String.valueOf(Float.intBitsToFloat((int) value));
+            case Types.T_DOUBLE:
+                return String.valueOf(Double.longBitsToDouble(value));
+            case Types.T_REFERENCE:
+            case Types.T_ARRAY:
+                return "@" + Integer.toHexString((int) value);
+            default:
+                return String.valueOf(value);
+        }
+    }
+
+    public MethodContext(Object[] args) {
+        this(MJIEnv.NULL, args, null);
+    }
+
+    MethodContext(int calleeRef, Object[] args, boolean[] loadedArgs) {
+        dependentFields = new LongMap<>();
+        dependentStaticFields = new LongMap<>();
+        arrayReads = new LongMap<>();
+        arrayRanges = new ArrayList<>();
+        identities = new LongMap<>();
+        nativeOperands = new LongMap<>();
+        codeClasses = new LongMap<>();
+        reset(calleeRef, args, loadedArgs);
+    }
+
+    /**
+     * Reinitialises the context for a new invocation, so that the
+     * RecordingStack can reuse it if it was never stored in a summary.
+     **/
+    void reset(int calleeRef, Object[] args, boolean[] loadedArgs) {
+        this.calleeRef = calleeRef;
+        this.loadedArgs = loadedArgs;
         params = args;
+        if (argValues == null || argValues.length != params.length) {
+            argValues = new long[params.length];
+            referenceArgs = new boolean[params.length];
+        }
         for (int i = 0; i < params.length; i++) {
-            if (params[i] instanceof ElementInfo) {
+            referenceArgs[i] = false;
+            if (!isLoaded(i)) {
+                params[i] = null;
+            } else if (params[i] instanceof ElementInfo) {
                 ElementInfo ei = (ElementInfo) params[i];
                 if (ei.isStringObject()) {
                     params[i] = ei.asString();
+                } else {
+                    params[i] = ei.getObjectRef();
+                    referenceArgs[i] = true;
                 }
             }
         }
-        dependentFields = new HashMap<>();
-        dependentStaticFields = new HashMap<>();
+        for (int i = 0; i < params.length; i++) {
+            argValues[i] = rawValue(params[i]);
+        }
+        dependentFields.clear();
+        dependentStaticFields.clear();
+        arrayReads.clear();
+        arrayRanges.clear();
+        identities.clear();
+        nativeOperands.clear();
+        codeClasses.clear();
+        storedClassFiles = null;
+        receiverClass = null;
+        structure = null;
+        pinned = null;
     }
 
     /**
      * Takes another context and adds all fields from that to itself.
-     * Needed when a summary is applied during recording.
-     * TODO: Resolve conflicts between contexts.
+     * Needed when a summary is applied during recording, and when a callee returns.
+     * Fields that are already in this context were read earlier, so their values are kept,
+     * the uses of the inner reads are added to them.
      * TODO: Add *this* from inner as well, as a field?
      **/
-    void addContextFields(MethodContext innerContext) {
-        HashMap<Integer, DependentFieldData> innerFields = innerContext.getDependentFields();
-        HashMap<String, DependentFieldData> innerStaticFields = innerContext.getDependentStaticFields();
+    void addContextFields(MethodContext innerContext, MethodModifications mods) {
+        // fields of objects that this invocation allocated don't depend on the state before the invocation
+        LongMap<DependentFieldData> innerFields = innerContext.getDependentFields();
+        for (int i = innerFields.nextIndex(0); i >= 0; i = innerFields.nextIndex(i + 1)) {
+            long key = innerFields.keyAt(i);
+            if (!mods.isNewObject((int) (key >>> 32))) {
+                addFieldUses(dependentFields, key, innerFields.valueAt(i));
+            }
+        }
+        LongMap<DependentFieldData> innerStaticFields = innerContext.getDependentStaticFields();
+        for (int i = innerStaticFields.nextIndex(0); i >= 0; i = innerStaticFields.nextIndex(i + 1)) {
+            addFieldUses(dependentStaticFields, innerStaticFields.keyAt(i), innerStaticFields.valueAt(i));
+        }
 
-        for (Integer fieldHash : innerFields.keySet()) {
-            DependentFieldData fieldData = innerFields.get(fieldHash);
-            this.dependentFields.put(fieldHash, fieldData);
+        // neither do elements of arrays that it allocated or has written already
+        LongMap<ArrayElements> innerReads = innerContext.arrayReads;
+        for (int i = innerReads.nextIndex(0); i >= 0; i = innerReads.nextIndex(i + 1)) {
+            ArrayElements inner = innerReads.valueAt(i);
+            if (mods.isNewObject(inner.arrayRef)) {
+                continue;
+            }
+            ArrayElements reads = arrayReads.get(inner.arrayRef);
+            if (reads == null) {
+                reads = new ArrayElements(inner.arrayRef, inner.elementType, inner.length);
+                arrayReads.put(inner.arrayRef, reads);
+            }
+            for (int index = inner.nextIndex(0); index >= 0; index = inner.nextIndex(index + 1)) {
+                if (!mods.containsArrayElement(inner.arrayRef, index)) {
+                    reads.putIfAbsent(index, inner.get(index));
+                }
+            }
+        }
+        for (ArrayElements.ArrayRange range : innerContext.arrayRanges) {
+            if (!mods.isNewObject(range.arrayRef)) {
+                arrayRanges.add(range);
+            }
+        }
+        for (int i = innerContext.identities.nextIndex(0); i >= 0; i = innerContext.identities.nextIndex(i + 1)) {
+            if (!mods.isNewObject((int) innerContext.identities.keyAt(i))) {
+                identities.put(innerContext.identities.keyAt(i), Boolean.TRUE);
+            }
+        }
+        for (int i = innerContext.nativeOperands.nextIndex(0); i >= 0; i = innerContext.nativeOperands.nextIndex(i + 1)) {
+            if (!mods.isNewObject((int) innerContext.nativeOperands.keyAt(i))) {
+                nativeOperands.put(innerContext.nativeOperands.keyAt(i), Boolean.TRUE);
+            }
+        }
+        codeClasses.putAll(innerContext.codeClasses, false);
+        if (innerContext.storedClassFiles != null) {
+            for (String classFile : innerContext.storedClassFiles) {
+                addStoredClassFile(classFile);
+            }
         }
+    }
+
+    /**
+     * Notes that code of {@code ci} runs during the invocation.
+     **/
+    void addCodeClass(ClassInfo ci) {
+        codeClasses.put(ci.getUniqueId(), ci);
+    }
 
-        for (String fieldName : innerStaticFields.keySet()) {
-            DependentFieldData fieldData = innerStaticFields.get(fieldName);
-            this.dependentStaticFields.put(fieldName, fieldData);
+    void addStoredClassFile(String classFile) {
+        if (storedClassFiles == null) {
+            storedClassFiles = new ArrayList<>();
+        }
+        if (!storedClassFiles.contains(classFile)) {
+            storedClassFiles.add(classFile);
         }
     }
 
+    /**
+     * Adds the class files a stored summary depends on to {@code classFiles}: those of the
+     * classes whose code ran and of the static fields the invocation read.
+     *
+     * @return false if one of the classes has no class file
+     **/
+    boolean collectClassFiles(Set<String> classFiles) {
+        for (int i = codeClasses.nextIndex(0); i >= 0; i = codeClasses.nextIndex(i + 1)) {
+            if (!addClassFile(classFiles, codeClasses.valueAt(i))) {
+                return false;
+            }
+        }
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            if (!addClassFile(classFiles, dependentStaticFields.valueAt(i).classInfo)) {
+                return false;
+            }
+        }
+        if (storedClassFiles != null) {
+            classFiles.addAll(storedClassFiles);
+        }
+        return true;
+    }
 
-    boolean match(ElementInfo calleeObject, Object[] args, boolean runningAlone) {
-        assert (this.calleeObject != null);
-        if (this.calleeObject != calleeObject) {
+    static boolean addClassFile(Set<String> classFiles, ClassInfo ci) {
+        String url = ci.getClassFileUrl();
+        if (url == null) {
             return false;
         }
+        classFiles.add(url);
+        return true;
+    }
+
+    // entries with conditions change with later uses, so this context gets its own
+    private static void addFieldUses(LongMap<DependentFieldData> fields, long key, DependentFieldData inner) {
+        DependentFieldData fieldData = fields.get(key);
+        if (fieldData == null) {
+            fields.put(key, inner.conditions == null ? inner : inner.copy());
+        } else {
+            fieldData.addUses(inner);
+        }
+    }
+
+    /**
+     * A copy that the recording can go on with independently of this context.
+     **/
+    MethodContext copy() {
+        MethodContext copy = new MethodContext(calleeRef, params.clone(), loadedArgs);
+        System.arraycopy(referenceArgs, 0, copy.referenceArgs, 0, referenceArgs.length);
+        copy.addContextFields(this, new MethodModifications(params));
+        return copy;
+    }
+
+    /**
+     * Adds the current value of an array element to the context, unless it has been read before.
+     **/
+    void addArrayElement(ElementInfo array, int index) {
+        ArrayElements reads = addArrayLength(array);
+        if (!reads.contains(index)) {
+            reads.put(index, ArrayElements.read(array, reads.elementType, index));
+        }
+    }
+
+    /**
+     * Adds the length of an array to the context, every access depends on it through the bounds check.
+     **/
+    ArrayElements addArrayLength(ElementInfo array) {
+        int arrayRef = array.getObjectRef();
+        ArrayElements reads = arrayReads.get(arrayRef);
+        if (reads == null) {
+            reads = new ArrayElements(array);
+            arrayReads.put(arrayRef, reads);
+        }
+        return reads;
+    }
+
+    /**
+     * Replaces the recorded array elements by ranges and hashes, which is all
+     * that matching needs once the context is stored.
+     **/
+    void compactArrays() {
+        for (int i = arrayReads.nextIndex(0); i >= 0; i = arrayReads.nextIndex(i + 1)) {
+            arrayRanges.addAll(Arrays.asList(arrayReads.valueAt(i).toRanges()));
+        }
+        arrayReads.clear();
+    }
+
+    /**
+     * Prepares the context for matching by structure instead of identity: records how the
+     * invocation reached each object it read, starting from its receiver and reference
+     * arguments and following the reference fields it read, breadth first. Matching follows
+     * the same fields from the new receiver and arguments to find the corresponding objects.
+     * Must be called before the context is stored, while the objects it read still exist.
+     **/
+    void captureStructure(ThreadInfo ti, MethodModifications mods) {
+        List<StructureEdge> edges = new ArrayList<>();
+        List<Integer> queue = new ArrayList<>();
+        LongMap<Boolean> reached = new LongMap<>();
+        if (calleeRef != MJIEnv.NULL && !addEdge(ti, edges, queue, reached, RECEIVER, MJIEnv.NULL, null, calleeRef)) {
+            return;
+        }
+        for (int i = 0; i < params.length; i++) {
+            if (referenceArgs[i] && argValues[i] != MJIEnv.NULL
+                    && !addEdge(ti, edges, queue, reached, i, MJIEnv.NULL, null, (int) argValues[i])) {
+                return;
+            }
+        }
+
+        LongMap<List<DependentFieldData>> bySource = new LongMap<>();
+        for (int i = dependentFields.nextIndex(0); i >= 0; i = dependentFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentFields.valueAt(i);
+            if (fieldData.fieldInfo.isReference() && fieldData.previousValue != MJIEnv.NULL) {
+                List<DependentFieldData> fields = bySource.get(fieldData.sourceRef);
+                if (fields == null) {
+                    fields = new ArrayList<>();
+                    bySource.put(fieldData.sourceRef, fields);
+                }
+                fields.add(fieldData);
+            }
+        }
+        for (int next = 0; next < queue.size(); next++) {
+            int sourceRef = queue.get(next);
+            List<DependentFieldData> fields = bySource.get(sourceRef);
+            if (fields == null) {
+                continue;
+            }
+            for (DependentFieldData fieldData : fields) {
+                if (!addEdge(ti, edges, queue, reached, FIELD, sourceRef, fieldData.fieldInfo, (int) fieldData.previousValue)) {
+                    return;
+                }
+            }
+        }
+
+        // everything else is matched by identity, so no reached object may be mapped onto it.
+        // Array elements are compared through their hash, so references in them stay as they are
+        LongMap<Boolean> refs = collectRefs(mods);
+        if (refs == null) {
+            return;
+        }
+        List<Integer> keep = new ArrayList<>();
+        for (int i = refs.nextIndex(0); i >= 0; i = refs.nextIndex(i + 1)) {
+            int objRef = (int) refs.keyAt(i);
+            if (objRef != MJIEnv.NULL && !reached.containsKey(objRef)) {
+                keep.add(objRef);
+            }
+        }
+        for (int i = arrayReads.nextIndex(0); i >= 0; i = arrayReads.nextIndex(i + 1)) {
+            ArrayElements reads = arrayReads.valueAt(i);
+            if (isReferenceElement(reads.elementType)) {
+                for (int index = reads.nextIndex(0); index >= 0; index = reads.nextIndex(index + 1)) {
+                    if (reads.get(index) != MJIEnv.NULL && reached.containsKey(reads.get(index))) {
+                        keep.add((int) reads.get(index));
+                    }
+                }
+            }
+        }
+        for (int i = identities.nextIndex(0); i >= 0; i = identities.nextIndex(i + 1)) {
+            if (reached.containsKey(identities.keyAt(i))) {
+                keep.add((int) identities.keyAt(i));
+            }
+        }
+        for (int i = nativeOperands.nextIndex(0); i >= 0; i = nativeOperands.nextIndex(i + 1)) {
+            if (reached.containsKey(nativeOperands.keyAt(i))) {
+                keep.add((int) nativeOperands.keyAt(i));
+            }
+        }
+
+        structure = edges.toArray(new StructureEdge[0]);
+        setPinned(keep);
+    }
+
+    /**
+     * Lets the context match any receiver of the same class if the invocation never
+     * consulted its receiver: it read none of its fields, didn't write, lock, return or
+     * store it, and didn't pass it to a native method. The receiver may still not be
+     * one of the other objects the summary refers to, comparing it to them would differ.
+     * Must be called before the context is stored, while the receiver still exists.
+     **/
+    void detachReceiver(ThreadInfo ti, MethodModifications mods) {
+        if (calleeRef == MJIEnv.NULL) {
+            return;
+        }
+        LongMap<Boolean> refs = collectRefs(mods);
+        ElementInfo callee = ti.getElementInfo(calleeRef);
+        if (refs == null || refs.containsKey(calleeRef) || callee == null) {
+            return;
+        }
+        // the receiver's class still decides which methods it dispatches to
+        receiverClass = callee.getClassInfo();
+        List<Integer> keep = new ArrayList<>();
+        for (int i = refs.nextIndex(0); i >= 0; i = refs.nextIndex(i + 1)) {
+            if (refs.keyAt(i) != MJIEnv.NULL) {
+                keep.add((int) refs.keyAt(i));
+            }
+        }
+        setPinned(keep);
+    }
+
+    private void setPinned(List<Integer> keep) {
+        pinned = new int[keep.size()];
+        for (int i = 0; i < pinned.length; i++) {
+            pinned[i] = keep.get(i);
+        }
+    }
+
+    /**
+     * The objRefs of all objects the context and {@code mods} refer to, possibly including
+     * MJIEnv.NULL, or null if the context depends on references it only knows by the hash
+     * of an array range.
+     **/
+    private LongMap<Boolean> collectRefs(MethodModifications mods) {
+        for (ArrayElements.ArrayRange range : arrayRanges) {
+            if (isReferenceElement(range.elementType)) {
+                return null;
+            }
+        }
+        LongMap<Boolean> refs = new LongMap<>();
+        for (int i = 0; i < params.length; i++) {
+            if (referenceArgs[i]) {
+                refs.put(argValues[i], Boolean.TRUE);
+            }
+        }
+        for (int i = dependentFields.nextIndex(0); i >= 0; i = dependentFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentFields.valueAt(i);
+            refs.put(fieldData.sourceRef, Boolean.TRUE);
+            if (fieldData.fieldInfo.isReference()) {
+                refs.put(fieldData.previousValue, Boolean.TRUE);
+            }
+        }
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentStaticFields.valueAt(i);
+            if (fieldData.fieldInfo.isReference()) {
+                refs.put(fieldData.previousValue, Boolean.TRUE);
+            }
+        }
+        for (int i = arrayReads.nextIndex(0); i >= 0; i = arrayReads.nextIndex(i + 1)) {
+            ArrayElements reads = arrayReads.valueAt(i);
+            refs.put(reads.arrayRef, Boolean.TRUE);
+            if (isReferenceElement(reads.elementType)) {
+                for (int index = reads.nextIndex(0); index >= 0; index = reads.nextIndex(index + 1)) {
+                    refs.put(reads.get(index), Boolean.TRUE);
+                }
+            }
+        }
+        for (ArrayElements.ArrayRange range : arrayRanges) {
+            refs.put(range.arrayRef, Boolean.TRUE);
+        }
+        refs.putAll(identities, false);
+        refs.putAll(nativeOperands, false);
+        mods.collectRefs(refs);
+        return refs;
+    }
 
-        return match(args, runningAlone);
+    private static boolean isReferenceElement(char elementType) {
+        return elementType == 'L' || elementType == '[';
     }
 
-    boolean match(Object[] args, boolean runningAlone) {
-        if (this.runningAlone != runningAlone)
+    private static boolean addEdge(ThreadInfo ti, List<StructureEdge> edges, List<Integer> queue, LongMap<Boolean> reached,
+                                   int arg, int sourceRef, FieldInfo fi, int objRef) {
+        ElementInfo ei = ti.getElementInfo(objRef);
+        if (ei == null) {
+            // collected since, the context is matched by identity
             return false;
-        if (!argumentsMatch(args)) {
-            //System.out.println("args mismatch");
+        }
+        // objects reached more than once check the aliasing when matching
+        edges.add(new StructureEdge(arg, sourceRef, fi, objRef, ei.getClassInfo()));
+        if (!reached.containsKey(objRef)) {
+            reached.put(objRef, Boolean.TRUE);
+            queue.add(objRef);
+        }
+        return true;
+    }
+
+    // see detachReceiver
+    private boolean matchReceiver(ThreadInfo ti, int calleeRef) {
+        ElementInfo callee = ti.getElementInfo(calleeRef);
+        if (callee == null || callee.getClassInfo() != receiverClass) {
             return false;
         }
+        for (int objRef : pinned) {
+            if (objRef == calleeRef) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps the objects the invocation reached to the objects the call that is about to be
+     * made from {@code caller} reaches the same way, see captureStructure.
+     *
+     * @return null if the call reaches a null, an object of another class, or
+     * aliases objects that were distinct, or the other way round
+     **/
+    private RefTranslation matchStructure(ThreadInfo ti, StackFrame caller, byte[] argTypes, int calleeRef) {
+        RefTranslation translation = new RefTranslation();
+        for (StructureEdge edge : structure) {
+            int objRef;
+            if (edge.arg == RECEIVER) {
+                objRef = calleeRef;
+            } else if (edge.arg == FIELD) {
+                ElementInfo source = ti.getElementInfo(translation.translate(edge.sourceRef));
+                if (source == null) {
+                    return null;
+                }
+                objRef = source.getReferenceField(edge.fieldInfo);
+            } else {
+                objRef = caller.peek(argumentOffset(argTypes, edge.arg));
+            }
+            ElementInfo ei = ti.getElementInfo(objRef);
+            if (ei == null || ei.getClassInfo() != edge.classInfo || !translation.map(edge.objRef, objRef)) {
+                return null;
+            }
+        }
+        for (int objRef : pinned) {
+            if (!translation.keeps(objRef)) {
+                return null;
+            }
+        }
+        return translation;
+    }
+
+
+    /**
+     * The value a boxed argument has in its stack slot(s). References are
+     * only compared through their objRef, strings are compared by content.
+     **/
+    private static long rawValue(Object value) {
+        if (value instanceof Integer) {
+            return (Integer) value;
+        } else if (value instanceof Long) {
+            return (Long) value;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        } else if (value instanceof Character) {
+            return (Character) value;
+        } else if (value instanceof Short) {
+            return (Short) value;
+        } else if (value instanceof Byte) {
+            return (Byte) value;
+        } else if (value instanceof Float) {
+            return Float.floatToIntBits((Float) value);
+        } else if (value instanceof Double) {
+            return Double.doubleToLongBits((Double) value);
+        }
+        // null, or a string that is matched by content
+        return MJIEnv.NULL;
+    }
+
+    private boolean isLoaded(int i) {
+        return loadedArgs == null || loadedArgs[i];
+    }
+
+    private boolean isReference(int i) {
+        return referenceArgs[i] || params[i] == null || params[i] instanceof String;
+    }
+
+    /**
+     * Reads the argument whose last slot is {@code offset} slots below the top
+     * of the caller's operand stack, in the representation of rawValue.
+     **/
+    private static long readArgument(StackFrame caller, byte type, int offset) {
+        switch (type) {
+            case Types.T_LONG:
+                return caller.peekLong(offset);
+            case Types.T_DOUBLE:
+                // canonical NaN, like Double.equals
+                return Double.doubleToLongBits(Double.longBitsToDouble(caller.peekLong(offset)));
+            case Types.T_FLOAT:
+                return Float.floatToIntBits(Float.intBitsToFloat(caller.peek(offset)));
+            default:
+                return caller.peek(offset);
+        }
+    }
+
+    private static int argumentSize(byte type) {
+        return (type == Types.T_LONG || type == Types.T_DOUBLE) ? 2 : 1;
+    }
+
+    // the offset of argument i for readArgument, and for peeking it from the caller's operand stack
+    static int argumentOffset(byte[] argTypes, int i) {
+        int offset = 0;
+        for (int j = argTypes.length - 1; j > i; j--) {
+            offset += argumentSize(argTypes[j]);
+        }
+        return offset;
+    }
+
+    /**
+     * Hash over the parts of a call that {@link #match} compares exactly:
+     * receiver identity and the primitive values of the loaded arguments. Pass MJIEnv.NULL as
+     * {@code calleeRef} if contexts are matched structurally, and the receiver's
+     * class id to find the contexts that don't depend on the receiver.
+     * Equal fingerprints are a necessary condition for a match, so the
+     * {@link SummaryContainer} only has to verify the candidates in one bucket.
+     * Computed from the arguments on the caller's operand stack, before the invoke.
+     **/
+    static int fingerprint(StackFrame caller, byte[] argTypes, boolean[] loadedArgs, int calleeRef) {
+        int result = calleeRef;
+        // the last argument is on top of the stack
+        int offset = 0;
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            byte type = argTypes[i];
+            if (!loadedArgs[i]) {
+                result = 31 * result;
+            } else if (type == Types.T_REFERENCE || type == Types.T_ARRAY) {
+                result = 31 * result + 1;
+            } else {
+                result = 31 * result + Long.hashCode(readArgument(caller, type, offset));
+            }
+            offset += argumentSize(type);
+        }
+        return result;
+    }
+
+    // must agree with the StackFrame version for the same arguments
+    int fingerprint(boolean byReceiver) {
+        int result = MJIEnv.NULL;
+        if (byReceiver) {
+            result = receiverClass != null ? receiverClass.getUniqueId() : calleeRef;
+        }
+        for (int i = params.length - 1; i >= 0; i--) {
+            if (!isLoaded(i)) {
+                result = 31 * result;
+            } else if (isReference(i)) {
+                // strings are compared by content, other objects by identity,
+                // neither of which can be hashed without looking at the heap
+                result = 31 * result + 1;
+            } else {
+                result = 31 * result + Long.hashCode(argValues[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Matches the call that is about to be made from {@code caller}, whose
+     * arguments are still on its operand stack.
+     *
+     * @return how the objects of the context map to the objects of the call,
+     * RefTranslation.IDENTITY unless the context is structural, or null if it doesn't match
+     **/
+    RefTranslation match(ThreadInfo ti, StackFrame caller, byte[] argTypes, int calleeRef) {
+        RefTranslation translation = RefTranslation.IDENTITY;
+        if (structure != null) {
+            translation = matchStructure(ti, caller, argTypes, calleeRef);
+            if (translation == null) {
+                return null;
+            }
+        } else if (receiverClass != null) {
+            if (!matchReceiver(ti, calleeRef)) {
+                return null;
+            }
+        } else if (this.calleeRef != calleeRef) {
+            return null;
+        }
+        if (!argumentsMatch(ti, caller, argTypes, translation)) {
+            //System.out.println("args mismatch");
+            return null;
+        }
 
         // at this point we know that the arguments match,
         // so any field operations that access fields
         // of arguments are safe
-        if (!staticFieldsMatch()) {
-            return false;
+        if (!staticFieldsMatch(translation)) {
+            return null;
         }
 
         // now both args and static fields are guaranteed to match
-        return fieldsMatch();
+        if (!fieldsMatch(ti, translation) || !arraysMatch(ti, translation)) {
+            return null;
+        }
+        return translation;
     }
 
-    private boolean valuesDiffer(Object oldValue, Object currentValue) {
-        if (oldValue == null) {
-            return currentValue != null;
-        }
+    // the values read while recording only determine the result as long as
+    // no other thread can write them, so shared sources never match
 
-        if (oldValue instanceof String) {
-            ElementInfo curr = (ElementInfo) currentValue;
-            if (curr == null) {
-                return true;
-            }
-            if (curr.isStringObject()) {
-                return !curr.equalsString((String) oldValue);
+    private boolean arraysMatch(ThreadInfo ti, RefTranslation translation) {
+        for (int i = 0; i < arrayRanges.size(); i++) {
+            ElementInfo array = ti.getElementInfo(translation.translate(arrayRanges.get(i).arrayRef));
+            if (array == null || array.isShared() || !arrayRanges.get(i).matches(array)) {
+                return false;
             }
         }
-        return !oldValue.equals(currentValue);
+        return true;
     }
 
-    private boolean fieldsMatch() {
-        for (DependentFieldData fieldData : dependentFields.values()) {
-            Object oldValue = fieldData.previousValue;
-            Object currentValue = fieldData.sourceObject.getFieldValueObject(fieldData.fieldName);
-            if (valuesDiffer(oldValue, currentValue)) {
+    private boolean fieldsMatch(ThreadInfo ti, RefTranslation translation) {
+        for (int i = dependentFields.nextIndex(0); i >= 0; i = dependentFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentFields.valueAt(i);
+            ElementInfo source = ti.getElementInfo(translation.translate(fieldData.sourceRef));
+            if (source == null || source.isShared() || !fieldData.matches(source, translation)) {
                 return false;
             }
         }
@@ -153,105 +843,312 @@ class MethodContext {
         return true;
     }
 
-    private boolean staticFieldsMatch() {
-        for (String fieldName : dependentStaticFields.keySet()) {
-            DependentFieldData fieldData = dependentStaticFields.get(fieldName);
+    private boolean staticFieldsMatch(RefTranslation translation) {
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentStaticFields.valueAt(i);
+            // the class may not be initialized in this state, e.g. after backtracking,
+            // then executing the method would run its <clinit> first
             ClassInfo ci = fieldData.classInfo;
-            Object oldValue = fieldData.previousValue;
-            // sometimes throws NPE, presumably the ci is not what we want here
-            Object currentValue = ci.getStaticFieldValueObject(fieldName);
-
-            if (valuesDiffer(oldValue, currentValue))
+            if (!ci.isInitialized()) {
+                return false;
+            }
+            ElementInfo classObject = ci.getStaticElementInfo();
+            if (classObject.isShared() || !fieldData.matches(classObject, translation))
                 return false;
         }
 
         return true;
     }
 
-    private boolean argumentsMatch(Object[] args) {
-        if (args.length != params.length) {
+    private boolean argumentsMatch(ThreadInfo ti, StackFrame caller, byte[] argTypes, RefTranslation translation) {
+        if (argTypes.length != params.length) {
             throw new IllegalArgumentException("Calling method with wrong number of arguments.");
         }
 
-        for (int i = 0; i < args.length; i++) {
-            if (valuesDiffer(params[i], args[i]))
+        int offset = 0;
+        for (int i = params.length - 1; i >= 0; i--) {
+            byte type = argTypes[i];
+            long value = readArgument(caller, type, offset);
+            offset += argumentSize(type);
+            if (!isLoaded(i)) {
+                continue;
+            }
+
+            Object param = params[i];
+            if (param instanceof String) {
+                ElementInfo curr = ti.getElementInfo((int) value);
+                if (curr == null || !curr.isStringObject() || !curr.equalsString((String) param)) {
+                    return false;
+                }
+            } else if (referenceArgs[i]) {
+                if (value != translation.translate((int) argValues[i])) {
+                    return false;
+                }
+            } else if (value != argValues[i]) {
                 return false;
+            }
         }
 
         return true;
     }
 
-    boolean containsField(String fieldName, ElementInfo source) {
-        return dependentFields.containsKey((fieldName + source.toString()).hashCode());
+    private static long staticFieldKey(FieldInfo fi) {
+        return LongMap.fieldKey(fi.getClassInfo().getUniqueId(), fi.getStorageOffset());
     }
 
-    public boolean containsStaticField(String fieldName) {
-        return dependentStaticFields.containsKey(fieldName);
+    boolean containsField(FieldInfo fi, ElementInfo source) {
+        return dependentFields.containsKey(LongMap.fieldKey(source.getObjectRef(), fi.getStorageOffset()));
     }
 
-    void addField(String fieldName, ElementInfo source, Object value) {
+    public boolean containsStaticField(FieldInfo fi) {
+        return dependentStaticFields.containsKey(staticFieldKey(fi));
+    }
+
+    /**
+     * Adds the current value of a field of {@code source} to the context.
+     **/
+    void addField(FieldInfo fi, ElementInfo source) {
+        addField(fi, source, null);
+    }
+
+    /**
+     * Adds a read of a field of {@code source}: the first read adds its current value,
+     * {@code condition} is what the value was used for, or null if it was used otherwise.
+     **/
+    void addField(FieldInfo fi, ElementInfo source, BranchCondition condition) {
         assert (!source.isShared());
 
-        dependentFields.put((fieldName + source.toString()).hashCode(), new DependentFieldData(fieldName, source, value));
+        long key = LongMap.fieldKey(source.getObjectRef(), fi.getStorageOffset());
+        DependentFieldData fieldData = dependentFields.get(key);
+        if (fieldData == null) {
+            fieldData = new DependentFieldData(fi, source.getObjectRef(), readField(source, fi));
+            fieldData.conditions = conditions(condition);
+            dependentFields.put(key, fieldData);
+        } else {
+            fieldData.addUse(condition);
+        }
+    }
+
+    /**
+     * Adds the current value of a static field, read from the class' static ElementInfo.
+     **/
+    public void addStaticField(FieldInfo fi, ElementInfo classObject) {
+        addStaticField(fi, readField(classObject, fi));
+    }
+
+    /**
+     * Adds a read of a static field, like addField.
+     **/
+    void addStaticField(FieldInfo fi, ElementInfo classObject, BranchCondition condition) {
+        DependentFieldData fieldData = dependentStaticFields.get(staticFieldKey(fi));
+        if (fieldData == null) {
+            addStaticField(fi, readField(classObject, fi));
+            dependentStaticFields.get(staticFieldKey(fi)).conditions = conditions(condition);
+        } else {
+            fieldData.addUse(condition);
+        }
+    }
+
+    void addStaticField(FieldInfo fi, long value) {
+        dependentStaticFields.put(staticFieldKey(fi), new DependentFieldData(fi, fi.getClassInfo(), value));
+    }
+
+    private static List<BranchCondition> conditions(BranchCondition condition) {
+        if (condition == null) {
+            return null;
+        }
+        List<BranchCondition> conditions = new ArrayList<>(1);
+        conditions.add(condition);
+        return conditions;
+    }
+
+    /**
+     * True if an object or class the invocation has read from is shared by now.
+     **/
+    boolean readsSharedObjects(ThreadInfo ti) {
+        for (int i = dependentFields.nextIndex(0); i >= 0; i = dependentFields.nextIndex(i + 1)) {
+            if (isShared(ti, (int) (dependentFields.keyAt(i) >>> 32))) {
+                return true;
+            }
+        }
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            ElementInfo classObject = dependentStaticFields.valueAt(i).classInfo.getStaticElementInfo();
+            if (classObject != null && classObject.isShared()) {
+                return true;
+            }
+        }
+        for (int i = arrayReads.nextIndex(0); i >= 0; i = arrayReads.nextIndex(i + 1)) {
+            if (isShared(ti, (int) arrayReads.keyAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that a native method with an identity effect is about to be called from
+     * {@code caller}: its result depends on which objects its receiver and arguments are.
+     **/
+    void addIdentities(StackFrame caller, MethodInfo mi, MethodModifications mods) {
+        addOperands(identities, caller, mi, mods);
+    }
+
+    /**
+     * Records the receiver and object arguments of a native method that is about to be
+     * called from {@code caller}, see nativeOperands.
+     **/
+    void addNativeOperands(StackFrame caller, MethodInfo mi, MethodModifications mods) {
+        addOperands(nativeOperands, caller, mi, mods);
+    }
+
+    private static void addOperands(LongMap<Boolean> objects, StackFrame caller, MethodInfo mi, MethodModifications mods) {
+        byte[] argTypes = mi.getArgumentTypes();
+        int offset = 0;
+        for (int i = argTypes.length - 1; i >= 0; i--) {
+            if (argTypes[i] == Types.T_REFERENCE || argTypes[i] == Types.T_ARRAY) {
+                addOperand(objects, caller.peek(offset), mods);
+            }
+            offset += argumentSize(argTypes[i]);
+        }
+        if (!mi.isStatic()) {
+            addOperand(objects, caller.getCalleeThis(mi), mods);
+        }
+    }
+
+    private static void addOperand(LongMap<Boolean> objects, int objRef, MethodModifications mods) {
+        if (objRef != MJIEnv.NULL && !mods.isNewObject(objRef)) {
+            objects.put(objRef, Boolean.TRUE);
+        }
     }
 
-    public void addStaticField(String fieldName, ClassInfo ci, Object value) {
-        dependentStaticFields.put(fieldName, new DependentFieldData(fieldName, ci, value));
+    static boolean isShared(ThreadInfo ti, int objRef) {
+        ElementInfo ei = ti.getElementInfo(objRef);
+        return ei != null && ei.isShared();
     }
 
-    private HashMap<Integer, DependentFieldData> getDependentFields() {
+    private LongMap<DependentFieldData> getDependentFields() {
         return dependentFields;
     }
 
-    HashMap<String, DependentFieldData> getDependentStaticFields() {
+    LongMap<DependentFieldData> getDependentStaticFields() {
         return dependentStaticFields;
     }
 
+    /**
+     * True if the context doesn't refer to any heap object, so it can be
+     * written to a {@link SummaryStore} and used in later runs.
+     **/
+    boolean isPersistable() {
+        if (calleeRef != MJIEnv.NULL || !dependentFields.isEmpty() || !arrayReads.isEmpty() || !arrayRanges.isEmpty()
+                || !identities.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < params.length; i++) {
+            if (referenceArgs[i] || !SummaryStore.isPersistableValue(params[i])) {
+                return false;
+            }
+        }
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            // object references are only valid within a run
+            if (dependentStaticFields.valueAt(i).fieldInfo.isReference()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(params.length);
+        for (Object param : params) {
+            SummaryStore.writeValue(out, param);
+        }
+        out.writeInt(dependentStaticFields.size());
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentStaticFields.valueAt(i);
+            SummaryStore.writeString(out, fieldData.classInfo.getName());
+            SummaryStore.writeString(out, fieldData.fieldInfo.getName());
+            out.writeLong(fieldData.previousValue);
+        }
+    }
+
+    static MethodContext read(ByteBuffer in, boolean[] loadedArgs) {
+        Object[] params = new Object[in.getInt()];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = SummaryStore.readValue(in);
+        }
+        MethodContext context = new MethodContext(MJIEnv.NULL, params, loadedArgs);
+        int staticFields = in.getInt();
+        for (int i = 0; i < staticFields; i++) {
+            ClassInfo ci = SummaryStore.resolveClass(SummaryStore.readString(in));
+            FieldInfo fi = SummaryStore.resolveStaticField(ci, SummaryStore.readString(in));
+            context.addStaticField(fi, in.getLong());
+        }
+        return context;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         MethodContext context = (MethodContext) o;
-        return runningAlone == context.runningAlone &&
-                Arrays.equals(params, context.params) &&
-                calleeObject.equals(context.calleeObject) &&
+        return Arrays.equals(params, context.params) &&
+                Arrays.equals(referenceArgs, context.referenceArgs) &&
+                Arrays.equals(loadedArgs, context.loadedArgs) &&
+                calleeRef == context.calleeRef &&
                 dependentFields.equals(context.dependentFields) &&
-                dependentStaticFields.equals(context.dependentStaticFields);
+                dependentStaticFields.equals(context.dependentStaticFields) &&
+                arrayRanges.equals(context.arrayRanges) &&
+                identities.equals(context.identities) &&
+                nativeOperands.equals(context.nativeOperands) &&
+                receiverClass == context.receiverClass;
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(runningAlone, calleeObject, dependentFields, dependentStaticFields);
+        int result = Objects.hash(calleeRef, dependentFields, dependentStaticFields, arrayRanges);
         result = 31 * result + Arrays.hashCode(params);
         return result;
     }
 
     @Override
     public String toString() {
-        if (params.length == 0 && dependentFields.size() == 0 && dependentStaticFields.size() == 0 && calleeObject == null) {
+        if (params.length == 0 && dependentFields.size() == 0 && dependentStaticFields.size() == 0 && arrayReads.isEmpty() && arrayRanges.isEmpty() && calleeRef == MJIEnv.NULL) {
             return "{}";
         }
         StringBuilder sb = new StringBuilder();
         sb.append("{\"contextSize\":").append(1 + params.length + dependentFields.size() + dependentStaticFields.size());
-        sb.append(", \"this\":\"").append(calleeObject).append("\"");
+        String receiver = calleeRef == MJIEnv.NULL ? "null" : "@" + Integer.toHexString(calleeRef);
+        if (receiverClass != null) {
+            receiver = "any " + receiverClass.getName();
+        }
+        sb.append(", \"this\":\"").append(receiver).append("\"");
         sb.append(", \"args\":[");
-        for (Object arg : params) {
-            if (arg != params[params.length - 1]) {
-                sb.append("\"").append(arg).append("\",");
-            } else {
-                sb.append("\"").append(arg).append("\"");
+        for (int i = 0; i < params.length; i++) {
+            Object arg = referenceArgs[i] ? "@" + Integer.toHexString((Integer) params[i]) : params[i];
+            if (!isLoaded(i)) {
+                arg = "*";
             }
+            sb.append(i == 0 ? "" : ",").append("\"").append(arg).append("\"");
         }
         sb.append("], \"fields\":[ ");
-        for (DependentFieldData fieldData : dependentFields.values()) {
-            sb.append("{\"sourceObject\":\"").append(fieldData.sourceObject).append("\", \"fieldName\":\"").append(fieldData.fieldName).append("\", \"value\":\"").append(fieldData.previousValue).append("\"},");
+        for (int i = dependentFields.nextIndex(0); i >= 0; i = dependentFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentFields.valueAt(i);
+            sb.append("{\"sourceObject\":\"@").append(Integer.toHexString(fieldData.sourceRef)).append("\", \"fieldName\":\"").append(fieldData.fieldInfo.getName()).append("\", \"value\":\"").append(fieldData.valueString()).append("\"},");
         }
         sb.deleteCharAt(sb.length() - 1);
         sb.append("], \"staticFields\":[ ");
 
-        for (String fieldName : dependentStaticFields.keySet()) {
-            DependentFieldData fieldData = dependentStaticFields.get(fieldName);
-            sb.append("{\"fieldName\":\"").append(fieldData.fieldName).append("\", \"classInfo\":\"").append(fieldData.classInfo).append("\", \"value\":\"").append(fieldData.previousValue).append("\"},");
+        for (int i = dependentStaticFields.nextIndex(0); i >= 0; i = dependentStaticFields.nextIndex(i + 1)) {
+            DependentFieldData fieldData = dependentStaticFields.valueAt(i);
+            sb.append("{\"fieldName\":\"").append(fieldData.fieldInfo.getName()).append("\", \"classInfo\":\"").append(fieldData.classInfo).append("\", \"value\":\"").append(fieldData.valueString()).append("\"},");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        sb.append("], \"arrays\":[ ");
+        for (int i = arrayReads.nextIndex(0); i >= 0; i = arrayReads.nextIndex(i + 1)) {
+            sb.append("\"").append(arrayReads.valueAt(i)).append("\",");
+        }
+        for (ArrayElements.ArrayRange range : arrayRanges) {
+            sb.append("\"").append(range).append("\",");
         }
         sb.deleteCharAt(sb.length() - 1);
         sb.append("]}");
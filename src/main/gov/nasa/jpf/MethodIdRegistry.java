@@ -0,0 +1,61 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.MethodInfo;
+
+import java.util.ArrayList;
+
+
+/**
+ * Assigns dense integer ids to methods, so that per-method state can be kept in
+ * arrays and bitsets instead of maps keyed by the full method name.
+ * The id is stored as an attribute of the MethodInfo, so it is only assigned once,
+ * and the full name is only built when it is needed for output.
+ */
+class MethodIdRegistry {
+    private final ArrayList<MethodInfo> methods = new ArrayList<>();
+    private final ArrayList<String> names = new ArrayList<>();
+
+    // MethodInfo attribute, tied to the registry since MethodInfos can outlive a search
+    private static class MethodId {
+        final MethodIdRegistry registry;
+        final int id;
+
+        MethodId(MethodIdRegistry registry, int id) {
+            this.registry = registry;
+            this.id = id;
+        }
+    }
+
+    int getId(MethodInfo mi) {
+        MethodId methodId = mi.getAttr(MethodId.class);
+        if (methodId != null) {
+            if (methodId.registry == this) {
+                return methodId.id;
+            }
+            mi.removeAttr(methodId);
+        }
+
+        int id = methods.size();
+        methods.add(mi);
+        names.add(null);
+        mi.addAttr(new MethodId(this, id));
+        return id;
+    }
+
+    MethodInfo getMethodInfo(int id) {
+        return methods.get(id);
+    }
+
+    String getName(int id) {
+        String name = names.get(id);
+        if (name == null) {
+            name = methods.get(id).getFullName();
+            names.set(id, name);
+        }
+        return name;
+    }
+
+    int size() {
+        return methods.size();
+    }
+}
@@ -2,66 +2,276 @@ package gov.nasa.jpf;
 
 import gov.nasa.jpf.vm.ClassInfo;
 import gov.nasa.jpf.vm.ElementInfo;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.MJIEnv;
+import gov.nasa.jpf.vm.ThreadInfo;
+import gov.nasa.jpf.vm.VM;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 class MethodModifications {
     MethodModifications(Object[] args) {
+        modifiedFields = new LongMap<>();
+        modifiedStaticFields = new LongMap<>();
+        arrayWrites = new LongMap<>();
+        newObjects = new LongMap<>();
+        locks = new LongMap<>();
+        allocations = new ArrayList<>();
+        output = new ArrayList<>();
+        reset(args);
+    }
+
+    /**
+     * Reinitialises the modifications for a new invocation, so that the
+     * RecordingStack can reuse them if they were never stored in a summary.
+     **/
+    void reset(Object[] args) {
         params = args;
-        modifiedFields = new HashMap<>();
-        modifiedStaticFields = new HashMap<>();
+        modifiedFields.clear();
+        modifiedStaticFields.clear();
+        arrayWrites.clear();
+        newObjects.clear();
+        locks.clear();
+        allocations.clear();
+        output.clear();
+        returnValue = null;
+        returnsReference = false;
+        exceptionClass = null;
+        exceptionMessage = null;
+        exceptionRef = MJIEnv.NULL;
+        newException = false;
     }
 
     private Object[] params;
-    private HashMap<Integer, ModifiedFieldData> modifiedFields;
-    private HashMap<Integer, ModifiedFieldData> modifiedStaticFields;
+    // keyed by LongMap.fieldKey of the object reference and the field's storage offset
+    private LongMap<ModifiedFieldData> modifiedFields;
+    // keyed by LongMap.fieldKey of the class id and the field's storage offset
+    private LongMap<ModifiedFieldData> modifiedStaticFields;
+    // keyed by the array's objRef
+    private LongMap<ArrayElements> arrayWrites;
+    // objects and arrays allocated during the invocation, they are local to it unless they escape
+    private LongMap<Boolean> newObjects;
+    // objects that existed before the invocation and were locked during it, keyed by objRef.
+    // The locks are released again before the invocation ends, so only their availability matters
+    private LongMap<Boolean> locks;
+    // the state of the new objects that escape, see captureAllocations
+    private List<NewObjectData> allocations;
+    // what the invocation printed, in order
+    private List<OutputData> output;
+    // references are kept as their objRef, ElementInfos are replaced when an object is modified or restored
     private Object returnValue;
+    private boolean returnsReference;
+    // set if the invocation was left by an exception instead of a return
+    private ClassInfo exceptionClass;
+    private String exceptionMessage;
+    private int exceptionRef;
+    // a new exception is created on apply, otherwise exceptionRef is thrown again
+    private boolean newException;
 
     private class ModifiedFieldData {
-        ModifiedFieldData(String fieldName, String type, ElementInfo ei, Object newValue) {
-            this.fieldName = fieldName;
-            this.type = type;
-            targetObject = ei;
+        ModifiedFieldData(FieldInfo fi, int objRef, long newValue) {
+            fieldInfo = fi;
+            targetRef = objRef;
             this.newValue = newValue;
         }
 
         // static field
-        ModifiedFieldData(String fieldName, String type, ClassInfo ci, Object newValue) {
-            this.fieldName = fieldName;
-            this.type = type;
+        ModifiedFieldData(FieldInfo fi, ClassInfo ci, long newValue) {
+            fieldInfo = fi;
             classInfo = ci;
             this.newValue = newValue;
         }
 
-        String fieldName;
-        String type;
+        FieldInfo fieldInfo;
         // for non-static fields
-        ElementInfo targetObject;
-        Object newValue;
+        int targetRef;
+        // the raw field slot(s), see MethodContext.readField
+        long newValue;
         // for static fields
         ClassInfo classInfo;
     }
 
 
-    private HashMap<Integer, ModifiedFieldData> getModifiedFields() {
+    /**
+     * An object or array allocated by the invocation, with the state it has when the invocation returns.
+     */
+    private static class NewObjectData {
+        final int objRef;
+        final ClassInfo classInfo;
+        // all instance fields, null for arrays
+        final FieldInfo[] fields;
+        final char elementType;
+        // raw field or element values
+        final long[] values;
+
+        NewObjectData(int objRef, ClassInfo classInfo, FieldInfo[] fields, char elementType, long[] values) {
+            this.objRef = objRef;
+            this.classInfo = classInfo;
+            this.fields = fields;
+            this.elementType = elementType;
+            this.values = values;
+        }
+
+        boolean isReference(int i) {
+            return fields == null ? isReferenceElement(elementType) : fields[i].isReference();
+        }
+
+        @Override
+        public String toString() {
+            return "new " + classInfo.getName() + "@" + Integer.toHexString(objRef);
+        }
+    }
+
+    /**
+     * Bytes written to System.out or System.err by a native method with an output effect.
+     */
+    private static class OutputData {
+        final boolean toErr;
+        final byte[] bytes;
+
+        OutputData(boolean toErr, byte[] bytes) {
+            this.toErr = toErr;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutputData that = (OutputData) o;
+            return toErr == that.toErr && Arrays.equals(bytes, that.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Boolean.hashCode(toErr) + Arrays.hashCode(bytes);
+        }
+    }
+
+    private static boolean isReferenceElement(char elementType) {
+        return elementType == 'L' || elementType == '[';
+    }
+
+    private int returnedRef() {
+        return returnsReference ? (Integer) returnValue : MJIEnv.NULL;
+    }
+
+    /**
+     * True if an object or class the invocation has written to, or allocated, is shared by now.
+     **/
+    boolean writesSharedObjects(ThreadInfo ti) {
+        for (int i = modifiedFields.nextIndex(0); i >= 0; i = modifiedFields.nextIndex(i + 1)) {
+            if (MethodContext.isShared(ti, modifiedFields.valueAt(i).targetRef)) {
+                return true;
+            }
+        }
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ElementInfo classObject = modifiedStaticFields.valueAt(i).classInfo.getStaticElementInfo();
+            if (classObject != null && classObject.isShared()) {
+                return true;
+            }
+        }
+        for (int i = arrayWrites.nextIndex(0); i >= 0; i = arrayWrites.nextIndex(i + 1)) {
+            if (MethodContext.isShared(ti, (int) arrayWrites.keyAt(i))) {
+                return true;
+            }
+        }
+        for (int i = newObjects.nextIndex(0); i >= 0; i = newObjects.nextIndex(i + 1)) {
+            if (MethodContext.isShared(ti, (int) newObjects.keyAt(i))) {
+                return true;
+            }
+        }
+        for (int i = locks.nextIndex(0); i >= 0; i = locks.nextIndex(i + 1)) {
+            if (MethodContext.isShared(ti, (int) locks.keyAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the objRefs of the objects that existed before the invocation and that the
+     * modifications refer to, as targets, written values, locks, return value or exception.
+     **/
+    void collectRefs(LongMap<Boolean> refs) {
+        for (int i = modifiedFields.nextIndex(0); i >= 0; i = modifiedFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedFields.valueAt(i);
+            addIfExisting(fieldData.targetRef, refs);
+            if (fieldData.fieldInfo.isReference()) {
+                addIfExisting((int) fieldData.newValue, refs);
+            }
+        }
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            if (fieldData.fieldInfo.isReference()) {
+                addIfExisting((int) fieldData.newValue, refs);
+            }
+        }
+        for (int i = arrayWrites.nextIndex(0); i >= 0; i = arrayWrites.nextIndex(i + 1)) {
+            ArrayElements elements = arrayWrites.valueAt(i);
+            addIfExisting(elements.arrayRef, refs);
+            if (isReferenceElement(elements.elementType)) {
+                for (int index = elements.nextIndex(0); index >= 0; index = elements.nextIndex(index + 1)) {
+                    addIfExisting((int) elements.get(index), refs);
+                }
+            }
+        }
+        for (NewObjectData newObject : allocations) {
+            for (int i = 0; i < newObject.values.length; i++) {
+                if (newObject.isReference(i)) {
+                    addIfExisting((int) newObject.values[i], refs);
+                }
+            }
+        }
+        for (int i = locks.nextIndex(0); i >= 0; i = locks.nextIndex(i + 1)) {
+            refs.put(locks.keyAt(i), Boolean.TRUE);
+        }
+        addIfExisting(returnedRef(), refs);
+        if (exceptionClass != null && !newException) {
+            addIfExisting(exceptionRef, refs);
+        }
+    }
+
+    private void addIfExisting(int objRef, LongMap<Boolean> refs) {
+        if (objRef != MJIEnv.NULL && !isNewObject(objRef)) {
+            refs.put(objRef, Boolean.TRUE);
+        }
+    }
+
+    private LongMap<ModifiedFieldData> getModifiedFields() {
         return modifiedFields;
     }
 
-    private HashMap<Integer, ModifiedFieldData> getModifiedStaticFields() {
+    private LongMap<ModifiedFieldData> getModifiedStaticFields() {
         return modifiedStaticFields;
     }
 
     @Override
     public String toString() {
         // TODO: Distinguish between actually returning null, and void method
-        if (params.length == 0 && modifiedFields.size() == 0 && modifiedStaticFields.size() == 0 && returnValue == null) {
+        if (params.length == 0 && modifiedFields.size() == 0 && modifiedStaticFields.size() == 0 && arrayWrites.isEmpty() && returnValue == null
+                && exceptionClass == null && output.isEmpty()) {
             return "{}";
         }
         StringBuilder sb = new StringBuilder();
-        sb.append("{\"modsSize\":").append(1 + params.length + modifiedFields.size() + modifiedStaticFields.size());
-        sb.append(", \"returnValue\":\"").append(returnValue).append("\"");
+        sb.append("{\"modsSize\":").append(1 + params.length + modifiedFields.size() + modifiedStaticFields.size() + arrayWrites.size());
+        sb.append(", \"returnValue\":\"").append(returnsReference ? "@" + Integer.toHexString(returnedRef()) : returnValue).append("\"");
+        if (exceptionClass != null) {
+            sb.append(", \"exception\":\"").append(exceptionClass.getName());
+            if (exceptionMessage != null) {
+                sb.append(": ").append(exceptionMessage);
+            }
+            sb.append("\"");
+        }
         sb.append(", \"args\":[");
         for (Object arg : params) {
             if (arg != params[params.length - 1]) {
@@ -71,14 +281,31 @@ class MethodModifications {
             }
         }
         sb.append("], \"fields\":[ ");
-        for (ModifiedFieldData fieldData : modifiedFields.values()) {
-            sb.append("{\"fieldName\":\"").append(fieldData.fieldName).append("\", \"targetObject\":\"").append(fieldData.targetObject).append("\", \"value\":\"").append(fieldData.newValue).append("\"},");
+        for (int i = modifiedFields.nextIndex(0); i >= 0; i = modifiedFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedFields.valueAt(i);
+            sb.append("{\"fieldName\":\"").append(fieldData.fieldInfo.getName()).append("\", \"targetObject\":\"@").append(Integer.toHexString(fieldData.targetRef)).append("\", \"value\":\"").append(MethodContext.valueToString(fieldData.fieldInfo, fieldData.newValue)).append("\"},");
         }
         sb.deleteCharAt(sb.length() - 1);
         sb.append("], \"staticFields\":[ ");
 
-        for (ModifiedFieldData fieldData : modifiedStaticFields.values()) {
-            sb.append("{\"fieldName\":\"").append(fieldData.fieldName).append("\", \"classInfo\":\"").append(fieldData.classInfo).append("\", \"value\":\"").append(fieldData.newValue).append("\"},");
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            sb.append("{\"fieldName\":\"").append(fieldData.fieldInfo.getName()).append("\", \"classInfo\":\"").append(fieldData.classInfo).append("\", \"value\":\"").append(MethodContext.valueToString(fieldData.fieldInfo, fieldData.newValue)).append("\"},");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        sb.append("], \"arrays\":[ ");
+        for (int i = arrayWrites.nextIndex(0); i >= 0; i = arrayWrites.nextIndex(i + 1)) {
+            sb.append("\"").append(arrayWrites.valueAt(i)).append("\",");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        sb.append("], \"output\":[ ");
+        for (OutputData data : output) {
+            sb.append("\"").append(data.toErr ? "err:" : "out:").append(data.bytes.length).append(" bytes\",");
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        sb.append("], \"allocations\":[ ");
+        for (NewObjectData newObject : allocations) {
+            sb.append("\"").append(newObject).append("\",");
         }
         sb.deleteCharAt(sb.length() - 1);
         sb.append("]}");
@@ -86,107 +313,461 @@ class MethodModifications {
     }
 
     void setReturnValue(Object returnValue) {
-        this.returnValue = returnValue;
+        returnsReference = returnValue instanceof ElementInfo;
+        this.returnValue = returnsReference ? (Object) ((ElementInfo) returnValue).getObjectRef() : returnValue;
+    }
+
+    boolean returnsReference() {
+        return returnsReference;
     }
 
     Object getReturnValue() {
         return returnValue;
     }
 
-    boolean anyTargetsAreFrozen() {
-        for (ModifiedFieldData fieldData : modifiedFields.values()) {
-            if (fieldData.targetObject.isFrozen())
-                return true;
+    /**
+     * Appends output of the invocation, consecutive output to the same stream is joined.
+     **/
+    void addOutput(boolean toErr, byte[] bytes) {
+        if (!output.isEmpty() && output.get(output.size() - 1).toErr == toErr) {
+            byte[] last = output.get(output.size() - 1).bytes;
+            byte[] joined = Arrays.copyOf(last, last.length + bytes.length);
+            System.arraycopy(bytes, 0, joined, last.length, bytes.length);
+            output.set(output.size() - 1, new OutputData(toErr, joined));
+        } else {
+            output.add(new OutputData(toErr, bytes));
         }
-        for (ModifiedFieldData staticFieldData : modifiedStaticFields.values()) {
-            ElementInfo targetClassObject = staticFieldData.classInfo.getModifiableStaticElementInfo();
-            if (targetClassObject.isFrozen())
-                return true;
+    }
+
+    /**
+     * Prints the output of the invocation again.
+     **/
+    void replayOutput(VM vm) {
+        for (OutputData data : output) {
+            OutputCapture.replay(vm, data.bytes);
         }
+    }
 
-        return false;
+    /**
+     * Notes that the invocation was left by throwing {@code exception}.
+     *
+     * @return false if the exception is a new object with state that
+     * creating it from its class and message would lose
+     **/
+    boolean setException(ElementInfo exception) {
+        exceptionClass = exception.getClassInfo();
+        exceptionRef = exception.getObjectRef();
+        newException = isNewObject(exceptionRef);
+        if (!newException) {
+            return true;
+        }
+        exceptionMessage = exception.getStringField("detailMessage");
+
+        FieldInfo cause = exceptionClass.getInstanceField("cause");
+        if (cause != null) {
+            int causeRef = exception.getReferenceField(cause);
+            if (causeRef != MJIEnv.NULL && causeRef != exception.getObjectRef()) {
+                return false;
+            }
+        }
+        for (ClassInfo ci = exceptionClass; ci != null && !ci.getName().equals("java.lang.Throwable"); ci = ci.getSuperClass()) {
+            for (FieldInfo fi : ci.getDeclaredInstanceFields()) {
+                if (MethodContext.readField(exception, fi) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    boolean throwsException() {
+        return exceptionClass != null;
+    }
+
+    ClassInfo getExceptionClass() {
+        return exceptionClass;
     }
 
-    void applyModifications() {
-        applyFieldUpdates();
-        applyStaticFieldUpdates();
+    String getExceptionMessage() {
+        return exceptionMessage;
     }
 
-    private void applyStaticFieldUpdates() {
-        for (ModifiedFieldData staticFieldData : modifiedStaticFields.values()) {
-            ElementInfo targetClassObject = staticFieldData.classInfo.getModifiableStaticElementInfo();
-            assert (targetClassObject != null);
-            applyFieldUpdate(staticFieldData.fieldName, staticFieldData.type, targetClassObject, staticFieldData.newValue);
+    /**
+     * The thrown object, or MJIEnv.NULL if applying the summary creates a new exception.
+     **/
+    int getExceptionRef() {
+        return newException ? MJIEnv.NULL : exceptionRef;
+    }
+
+    /**
+     * Groups the field writes per target object, so that applying them takes
+     * one modifiable ElementInfo per object, and turns references to the new
+     * objects into allocations. Only valid as long as no more fields are
+     * added, which is the case once the modifications are stored.
+     **/
+    ApplyPlan compileApplyPlan() {
+        if (modifiedFields.isEmpty() && modifiedStaticFields.isEmpty() && arrayWrites.isEmpty() && allocations.isEmpty()
+                && locks.isEmpty()) {
+            return ApplyPlan.EMPTY;
         }
+        // references to the new objects are replaced by the index of their allocation
+        LongMap<Integer> allocationIndex = new LongMap<>();
+        for (int i = 0; i < allocations.size(); i++) {
+            allocationIndex.put(allocations.get(i).objRef, i);
+        }
+
+        ApplyPlan.Allocation[] newObjectPlans = new ApplyPlan.Allocation[allocations.size()];
+        for (int i = 0; i < newObjectPlans.length; i++) {
+            NewObjectData newObject = allocations.get(i);
+            int[] newRefs = null;
+            for (int j = 0; j < newObject.values.length; j++) {
+                if (newObject.isReference(j)) {
+                    newRefs = addNewRef(newRefs, newObject.values.length, j, allocationIndex.get(newObject.values[j]));
+                }
+            }
+            newObjectPlans[i] = new ApplyPlan.Allocation(newObject.classInfo, newObject.fields, newObject.elementType,
+                    newObject.values, newRefs);
+        }
+
+        List<ApplyPlan.TargetWrites> targets = new ArrayList<>();
+
+        Map<Integer, List<ModifiedFieldData>> byObject = new LinkedHashMap<>();
+        for (int i = modifiedFields.nextIndex(0); i >= 0; i = modifiedFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedFields.valueAt(i);
+            byObject.computeIfAbsent(fieldData.targetRef, k -> new ArrayList<>()).add(fieldData);
+        }
+        for (Map.Entry<Integer, List<ModifiedFieldData>> entry : byObject.entrySet()) {
+            targets.add(toTargetWrites(entry.getKey(), null, entry.getValue(), allocationIndex));
+        }
+
+        for (int i = arrayWrites.nextIndex(0); i >= 0; i = arrayWrites.nextIndex(i + 1)) {
+            ArrayElements elements = arrayWrites.valueAt(i);
+            int[] indices = new int[elements.size()];
+            long[] values = new long[indices.length];
+            int[] newRefs = null;
+            int n = 0;
+            for (int index = elements.nextIndex(0); index >= 0; index = elements.nextIndex(index + 1)) {
+                indices[n] = index;
+                values[n] = elements.get(index);
+                if (isReferenceElement(elements.elementType)) {
+                    newRefs = addNewRef(newRefs, values.length, n, allocationIndex.get(values[n]));
+                }
+                n++;
+            }
+            targets.add(new ApplyPlan.TargetWrites(elements.arrayRef, elements.elementType, indices, values, newRefs));
+        }
+
+        Map<ClassInfo, List<ModifiedFieldData>> byClass = new LinkedHashMap<>();
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            byClass.computeIfAbsent(fieldData.classInfo, k -> new ArrayList<>()).add(fieldData);
+        }
+        for (Map.Entry<ClassInfo, List<ModifiedFieldData>> entry : byClass.entrySet()) {
+            targets.add(toTargetWrites(MJIEnv.NULL, entry.getKey(), entry.getValue(), allocationIndex));
+        }
+
+        int[] lockRefs = new int[locks.size()];
+        int n = 0;
+        for (int i = locks.nextIndex(0); i >= 0; i = locks.nextIndex(i + 1)) {
+            lockRefs[n++] = (int) locks.keyAt(i);
+        }
+
+        Integer returnAllocation = allocationIndex.get(returnedRef());
+        return new ApplyPlan(newObjectPlans, targets.toArray(new ApplyPlan.TargetWrites[0]), lockRefs,
+                returnAllocation == null ? -1 : returnAllocation);
+    }
+
+    private static ApplyPlan.TargetWrites toTargetWrites(int objRef, ClassInfo ci, List<ModifiedFieldData> writes,
+                                                         LongMap<Integer> allocationIndex) {
+        FieldInfo[] fields = new FieldInfo[writes.size()];
+        long[] values = new long[writes.size()];
+        int[] newRefs = null;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = writes.get(i).fieldInfo;
+            values[i] = writes.get(i).newValue;
+            if (fields[i].isReference()) {
+                newRefs = addNewRef(newRefs, fields.length, i, allocationIndex.get(values[i]));
+            }
+        }
+        return new ApplyPlan.TargetWrites(objRef, ci, fields, values, newRefs);
+    }
+
+    // newRefs is only created once a value refers to a new object, -1 elsewhere
+    private static int[] addNewRef(int[] newRefs, int length, int i, Integer allocation) {
+        if (allocation == null) {
+            return newRefs;
+        }
+        if (newRefs == null) {
+            newRefs = new int[length];
+            Arrays.fill(newRefs, -1);
+        }
+        newRefs[i] = allocation;
+        return newRefs;
     }
 
-    private void applyFieldUpdates() {
-        for (ModifiedFieldData fieldData : modifiedFields.values()) {
-            assert (!fieldData.targetObject.isShared());
-            applyFieldUpdate(fieldData.fieldName, fieldData.type, fieldData.targetObject, fieldData.newValue);
+    /**
+     * Takes a snapshot of the new objects that are reachable from the return value
+     * and the modified fields and array elements, once the invocation has returned.
+     * Applying the summary allocates fresh copies of them.
+     *
+     * @return false if a new exception that the invocation throws is among them,
+     * applying the summary creates the exception on its own
+     **/
+    boolean captureAllocations(ThreadInfo ti) {
+        allocations.clear();
+        if (newObjects.isEmpty()) {
+            return true;
+        }
+        LongMap<Boolean> captured = new LongMap<>();
+        List<Integer> pending = new ArrayList<>();
+
+        addIfNew(returnedRef(), captured, pending);
+        for (int i = modifiedFields.nextIndex(0); i >= 0; i = modifiedFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedFields.valueAt(i);
+            if (fieldData.fieldInfo.isReference()) {
+                addIfNew((int) fieldData.newValue, captured, pending);
+            }
+        }
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            if (fieldData.fieldInfo.isReference()) {
+                addIfNew((int) fieldData.newValue, captured, pending);
+            }
         }
+        for (int i = arrayWrites.nextIndex(0); i >= 0; i = arrayWrites.nextIndex(i + 1)) {
+            ArrayElements elements = arrayWrites.valueAt(i);
+            if (isReferenceElement(elements.elementType)) {
+                for (int index = elements.nextIndex(0); index >= 0; index = elements.nextIndex(index + 1)) {
+                    addIfNew((int) elements.get(index), captured, pending);
+                }
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            int objRef = pending.remove(pending.size() - 1);
+            NewObjectData newObject = snapshot(ti.getElementInfo(objRef));
+            allocations.add(newObject);
+            for (int i = 0; i < newObject.values.length; i++) {
+                if (newObject.isReference(i)) {
+                    addIfNew((int) newObject.values[i], captured, pending);
+                }
+            }
+        }
+
+        return !(newException && captured.containsKey(exceptionRef));
     }
 
-    private void applyFieldUpdate(String fieldName, String type, ElementInfo ei, Object newValue) {
-        switch (type) {
-            case "int":
-                ei.setIntField(fieldName, (int) newValue);
-                break;
-            case "float":
-                ei.setFloatField(fieldName, (float) newValue);
-                break;
-            case "char":
-                ei.setCharField(fieldName, (char) newValue);
-                break;
-            case "byte":
-                ei.setByteField(fieldName, (byte) newValue);
-                break;
-            case "double":
-                ei.setDoubleField(fieldName, (double) newValue);
-                break;
-            case "long":
-                ei.setLongField(fieldName, (long) newValue);
-                break;
-            case "short":
-                ei.setShortField(fieldName, (short) newValue);
-                break;
-            case "boolean":
-                ei.setBooleanField(fieldName, (boolean) newValue);
-                break;
-            case "#objectReference":
-                ei.setReferenceField(fieldName, (int) newValue);
-                break;
+    private void addIfNew(int objRef, LongMap<Boolean> captured, List<Integer> pending) {
+        if (isNewObject(objRef) && !captured.containsKey(objRef)) {
+            captured.put(objRef, Boolean.TRUE);
+            pending.add(objRef);
         }
     }
 
+    private static NewObjectData snapshot(ElementInfo ei) {
+        ClassInfo ci = ei.getClassInfo();
+        if (ei.isArray()) {
+            char elementType = ArrayElements.elementType(ei);
+            long[] values = new long[ei.arrayLength()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = ArrayElements.read(ei, elementType, i);
+            }
+            return new NewObjectData(ei.getObjectRef(), ci, null, elementType, values);
+        }
+        FieldInfo[] fields = new FieldInfo[ci.getNumberOfInstanceFields()];
+        long[] values = new long[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = ci.getInstanceField(i);
+            values[i] = MethodContext.readField(ei, fields[i]);
+        }
+        return new NewObjectData(ei.getObjectRef(), ci, fields, (char) 0, values);
+    }
+
     /**
      * Takes another set of modifications and adds them to itself.
      * Needed when a summary is applied during recording.
      **/
     void addModificationFields(MethodModifications innerMods) {
-        HashMap<Integer, ModifiedFieldData> innerFields = innerMods.getModifiedFields();
-        HashMap<Integer, ModifiedFieldData> innerStaticFields = innerMods.getModifiedStaticFields();
+        // objects allocated by the callee are local to the caller as well,
+        // so are the writes to objects that the caller allocated
+        newObjects.putAll(innerMods.newObjects, false);
+
+        // the inner modifications happened later, so they win
+        LongMap<ModifiedFieldData> innerFields = innerMods.getModifiedFields();
+        for (int i = innerFields.nextIndex(0); i >= 0; i = innerFields.nextIndex(i + 1)) {
+            if (!isNewObject(innerFields.valueAt(i).targetRef)) {
+                modifiedFields.put(innerFields.keyAt(i), innerFields.valueAt(i));
+            }
+        }
+        modifiedStaticFields.putAll(innerMods.getModifiedStaticFields(), true);
+
+        LongMap<ArrayElements> innerWrites = innerMods.arrayWrites;
+        for (int i = innerWrites.nextIndex(0); i >= 0; i = innerWrites.nextIndex(i + 1)) {
+            ArrayElements inner = innerWrites.valueAt(i);
+            if (isNewObject(inner.arrayRef)) {
+                continue;
+            }
+            ArrayElements writes = arrayWrites.get(inner.arrayRef);
+            if (writes == null) {
+                writes = new ArrayElements(inner.arrayRef, inner.elementType, inner.length);
+                arrayWrites.put(inner.arrayRef, writes);
+            }
+            writes.putAll(inner, true);
+        }
 
-        for (Integer fieldHash : innerFields.keySet()) {
-            ModifiedFieldData fieldData = innerFields.get(fieldHash);
-            this.modifiedFields.put(fieldHash, fieldData);
+        for (OutputData data : innerMods.output) {
+            addOutput(data.toErr, data.bytes);
         }
 
-        for (Integer fieldHash : innerStaticFields.keySet()) {
-            ModifiedFieldData fieldData = innerStaticFields.get(fieldHash);
-            this.modifiedStaticFields.put(fieldHash, fieldData);
+        for (int i = innerMods.locks.nextIndex(0); i >= 0; i = innerMods.locks.nextIndex(i + 1)) {
+            if (!isNewObject((int) innerMods.locks.keyAt(i))) {
+                locks.put(innerMods.locks.keyAt(i), Boolean.TRUE);
+            }
         }
     }
 
-    void addField(String fieldName, String type, ElementInfo ei, Object newValue) {
-        modifiedFields.put((fieldName.hashCode() + ei.hashCode()), new ModifiedFieldData(fieldName, type, ei, newValue));
+    /**
+     * A copy of the modifications of an invocation that is still being recorded.
+     **/
+    MethodModifications copy() {
+        MethodModifications copy = new MethodModifications(params.clone());
+        copy.addModificationFields(this);
+        return copy;
+    }
+
+    /**
+     * Captures the value that has just been written to an element of an array
+     * that existed before the invocation.
+     **/
+    void addArrayElement(ElementInfo array, int index) {
+        int arrayRef = array.getObjectRef();
+        ArrayElements writes = arrayWrites.get(arrayRef);
+        if (writes == null) {
+            writes = new ArrayElements(array);
+            arrayWrites.put(arrayRef, writes);
+        }
+        writes.put(index, ArrayElements.read(array, writes.elementType, index));
+    }
+
+    boolean containsArrayElement(int arrayRef, int index) {
+        ArrayElements writes = arrayWrites.get(arrayRef);
+        return writes != null && writes.contains(index);
+    }
+
+    void addNewObject(int objRef) {
+        newObjects.put(objRef, Boolean.TRUE);
+    }
+
+    boolean isNewObject(int objRef) {
+        return newObjects.containsKey(objRef);
+    }
+
+    /**
+     * Records that the invocation locked {@code lock}, which no other thread could contend for.
+     * Locks on objects the invocation allocated are always free.
+     **/
+    void addLock(ElementInfo lock) {
+        int objRef = lock.getObjectRef();
+        if (!isNewObject(objRef)) {
+            locks.put(objRef, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Forgets the objects allocated by the recorded invocation, their objRefs
+     * mean nothing to the invocations the summary is applied to.
+     **/
+    void clearNewObjects() {
+        newObjects.clear();
+    }
+
+    /**
+     * Captures the value that has just been written to the field.
+     **/
+    void addField(FieldInfo fi, ElementInfo ei) {
+        modifiedFields.put(LongMap.fieldKey(ei.getObjectRef(), fi.getStorageOffset()),
+                new ModifiedFieldData(fi, ei.getObjectRef(), MethodContext.readField(ei, fi)));
+    }
+
+
+    void addStaticField(FieldInfo fi, ElementInfo classObject) {
+        addStaticField(fi, MethodContext.readField(classObject, fi));
+    }
+
+    void addStaticField(FieldInfo fi, long newValue) {
+        modifiedStaticFields.put(LongMap.fieldKey(fi.getClassInfo().getUniqueId(), fi.getStorageOffset()),
+                new ModifiedFieldData(fi, fi.getClassInfo(), newValue));
     }
 
 
-    void addStaticField(String fieldName, String type, ClassInfo ci, Object newValue) {
-        modifiedStaticFields.put((fieldName.hashCode() + ci.hashCode()), new ModifiedFieldData(fieldName, type, ci, newValue));
+    /**
+     * True if the modifications don't refer to any heap object, so they can be
+     * written to a {@link SummaryStore} and applied in later runs.
+     **/
+    /**
+     * Adds the class files of the static fields the invocation wrote to {@code classFiles},
+     * see MethodContext.collectClassFiles.
+     **/
+    boolean collectClassFiles(Set<String> classFiles) {
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            if (!MethodContext.addClassFile(classFiles, modifiedStaticFields.valueAt(i).classInfo)) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    boolean isPersistable() {
+        if (!modifiedFields.isEmpty() || !arrayWrites.isEmpty() || !allocations.isEmpty() || !locks.isEmpty()
+                || exceptionClass != null || returnsReference || !SummaryStore.isPersistableValue(returnValue)) {
+            return false;
+        }
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            // object references are only valid within a run
+            if (fieldData.fieldInfo.isReference()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(modifiedStaticFields.size());
+        for (int i = modifiedStaticFields.nextIndex(0); i >= 0; i = modifiedStaticFields.nextIndex(i + 1)) {
+            ModifiedFieldData fieldData = modifiedStaticFields.valueAt(i);
+            SummaryStore.writeString(out, fieldData.classInfo.getName());
+            SummaryStore.writeString(out, fieldData.fieldInfo.getName());
+            out.writeLong(fieldData.newValue);
+        }
+        out.writeInt(output.size());
+        for (OutputData data : output) {
+            out.writeBoolean(data.toErr);
+            out.writeInt(data.bytes.length);
+            out.write(data.bytes);
+        }
+        SummaryStore.writeValue(out, returnValue);
+    }
+
+    static MethodModifications read(ByteBuffer in) {
+        // the arguments are only kept for printing, they are part of the context
+        MethodModifications mods = new MethodModifications(new Object[0]);
+        int staticFields = in.getInt();
+        for (int i = 0; i < staticFields; i++) {
+            ClassInfo ci = SummaryStore.resolveClass(SummaryStore.readString(in));
+            FieldInfo fi = SummaryStore.resolveStaticField(ci, SummaryStore.readString(in));
+            mods.addStaticField(fi, in.getLong());
+        }
+        int outputs = in.getInt();
+        for (int i = 0; i < outputs; i++) {
+            boolean toErr = in.get() != 0;
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            mods.addOutput(toErr, bytes);
+        }
+        mods.setReturnValue(SummaryStore.readValue(in));
+        return mods;
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -196,12 +777,20 @@ class MethodModifications {
         return Arrays.equals(params, that.params) &&
                 modifiedFields.equals(that.modifiedFields) &&
                 modifiedStaticFields.equals(that.modifiedStaticFields) &&
-                returnValue.equals(that.returnValue);
+                arrayWrites.equals(that.arrayWrites) &&
+                locks.equals(that.locks) &&
+                output.equals(that.output) &&
+                Objects.equals(returnValue, that.returnValue) &&
+                returnsReference == that.returnsReference &&
+                exceptionClass == that.exceptionClass &&
+                Objects.equals(exceptionMessage, that.exceptionMessage) &&
+                exceptionRef == that.exceptionRef &&
+                newException == that.newException;
     }
 
     @Override
     public int hashCode() {
-        int result = Objects.hash(modifiedFields, modifiedStaticFields, returnValue);
+        int result = Objects.hash(modifiedFields, modifiedStaticFields, arrayWrites, locks, output, returnValue, exceptionMessage, exceptionRef);
         result = 31 * result + Arrays.hashCode(params);
         return result;
     }
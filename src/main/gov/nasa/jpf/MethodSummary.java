@@ -1,14 +1,63 @@
 package gov.nasa.jpf;
 
+import gov.nasa.jpf.vm.ThreadInfo;
+
+import java.util.Arrays;
 import java.util.Objects;
 
 class MethodSummary {
     public MethodContext context;
+    // null for summaries with branches
     public MethodModifications mods;
+    // the field writes of mods, compiled once since summaries are applied far more often than stored
+    final ApplyPlan plan;
+
+    // one summary per choice of the data choice generator the invocation registered, null if it didn't.
+    // The branches share the context, which is what all of them read
+    final MethodSummary[] branches;
+    // the choice that led to each branch
+    final Object[] choices;
+
+    // usage statistics for the EvictionPolicy, in SummaryContainer time
+    long created;
+    long lastUsed;
+    int hits;
 
     MethodSummary(MethodContext context, MethodModifications mods) {
         this.context = context;
         this.mods = mods;
+        context.compactArrays();
+        plan = mods.compileApplyPlan();
+        mods.clearNewObjects();
+        branches = null;
+        choices = null;
+    }
+
+    MethodSummary(MethodContext context, MethodModifications[] branchMods, Object[] choices) {
+        this.context = context;
+        context.compactArrays();
+        branches = new MethodSummary[branchMods.length];
+        for (int i = 0; i < branches.length; i++) {
+            branches[i] = new MethodSummary(context, branchMods[i]);
+        }
+        this.choices = choices;
+        mods = null;
+        plan = null;
+    }
+
+    /**
+     * See {@link ApplyPlan#targetsThreadLocal}, for all branches.
+     **/
+    boolean targetsThreadLocal(ThreadInfo ti, RefTranslation translation) {
+        if (branches == null) {
+            return plan.targetsThreadLocal(ti, translation);
+        }
+        for (MethodSummary branch : branches) {
+            if (!branch.plan.targetsThreadLocal(ti, translation)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -17,11 +66,12 @@ class MethodSummary {
         if (o == null || getClass() != o.getClass()) return false;
         MethodSummary that = (MethodSummary) o;
         return context.equals(that.context) &&
-                mods.equals(that.mods);
+                Objects.equals(mods, that.mods) &&
+                Arrays.equals(branches, that.branches);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(context, mods);
+        return 31 * Objects.hash(context, mods) + Arrays.hashCode(branches);
     }
-}
\ No newline at end of file
+}
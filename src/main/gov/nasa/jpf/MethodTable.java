@@ -0,0 +1,31 @@
+package gov.nasa.jpf;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable array indexed by the ids of a {@link MethodIdRegistry}.
+ */
+class MethodTable<T> {
+    private Object[] entries = new Object[256];
+
+    @SuppressWarnings("unchecked")
+    T get(int methodId) {
+        if (methodId >= entries.length) {
+            return null;
+        }
+        return (T) entries[methodId];
+    }
+
+    void put(int methodId, T value) {
+        if (methodId >= entries.length) {
+            entries = Arrays.copyOf(entries, Math.max(entries.length * 2, methodId + 1));
+        }
+        entries[methodId] = value;
+    }
+
+    // upper bound on the ids that have entries
+    int size() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,163 @@
+package gov.nasa.jpf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Descriptor of what a native method does to the state that summaries track, so that
+ * executing it doesn't have to end the recordings. Written as whitespace separated effects:
+ * <pre>
+ * pure                  no effect besides the return value
+ * output                writes to System.out or System.err
+ * reads(count,limit)    reads fields of the receiver, or static fields of the declaring class
+ * writes(count)         writes fields in the same way
+ * identity              the return value depends on the identity of the receiver or the object arguments
+ * local                 changes its receiver in untracked ways, only allowed on receivers the recording allocated
+ * elements              reads all elements of its array arguments
+ * </pre>
+ */
+public class NativeEffect {
+    public static final NativeEffect PURE = new NativeEffect(false, new String[0], new String[0]);
+
+    private final boolean output;
+    private final String[] reads;
+    private final String[] writes;
+    private final boolean identity;
+    private final boolean local;
+    private final boolean elements;
+
+    public NativeEffect(boolean output, String[] reads, String[] writes) {
+        this(output, reads, writes, false);
+    }
+
+    public NativeEffect(boolean output, String[] reads, String[] writes, boolean identity) {
+        this(output, reads, writes, identity, false);
+    }
+
+    public NativeEffect(boolean output, String[] reads, String[] writes, boolean identity, boolean local) {
+        this(output, reads, writes, identity, local, false);
+    }
+
+    public NativeEffect(boolean output, String[] reads, String[] writes, boolean identity, boolean local, boolean elements) {
+        this.output = output;
+        this.reads = reads;
+        this.writes = writes;
+        this.identity = identity;
+        this.local = local;
+        this.elements = elements;
+    }
+
+    public static NativeEffect parse(String descriptor) {
+        boolean output = false;
+        boolean identity = false;
+        boolean local = false;
+        boolean elements = false;
+        List<String> reads = new ArrayList<>();
+        List<String> writes = new ArrayList<>();
+        // the field lists may contain blanks after the commas
+        for (String effect : descriptor.trim().split("\\s+(?![^(]*\\))")) {
+            if (effect.equals("pure")) {
+                continue;
+            } else if (effect.equals("output")) {
+                output = true;
+            } else if (effect.equals("identity")) {
+                identity = true;
+            } else if (effect.equals("local")) {
+                local = true;
+            } else if (effect.equals("elements")) {
+                elements = true;
+            } else if (effect.startsWith("reads(") && effect.endsWith(")")) {
+                addFields(reads, effect.substring("reads(".length(), effect.length() - 1));
+            } else if (effect.startsWith("writes(") && effect.endsWith(")")) {
+                addFields(writes, effect.substring("writes(".length(), effect.length() - 1));
+            } else {
+                throw new JPFConfigException("unknown native effect: " + effect);
+            }
+        }
+        return new NativeEffect(output, reads.toArray(new String[0]), writes.toArray(new String[0]), identity, local, elements);
+    }
+
+    private static void addFields(List<String> fields, String names) {
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                fields.add(name.trim());
+            }
+        }
+    }
+
+    public boolean isPure() {
+        return !output && reads.length == 0 && writes.length == 0 && !identity && !local && !elements;
+    }
+
+    public boolean isOutput() {
+        return output;
+    }
+
+    public String[] getReads() {
+        return reads;
+    }
+
+    public String[] getWrites() {
+        return writes;
+    }
+
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    public boolean isLocal() {
+        return local;
+    }
+
+    public boolean readsElements() {
+        return elements;
+    }
+
+    @Override
+    public String toString() {
+        if (isPure()) {
+            return "pure";
+        }
+        StringBuilder sb = new StringBuilder();
+        if (output) {
+            sb.append("output ");
+        }
+        if (reads.length > 0) {
+            sb.append("reads(").append(String.join(",", reads)).append(") ");
+        }
+        if (writes.length > 0) {
+            sb.append("writes(").append(String.join(",", writes)).append(") ");
+        }
+        if (identity) {
+            sb.append("identity ");
+        }
+        if (local) {
+            sb.append("local ");
+        }
+        if (elements) {
+            sb.append("elements ");
+        }
+        return sb.toString().trim();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        NativeEffect that = (NativeEffect) o;
+        return output == that.output &&
+                identity == that.identity &&
+                local == that.local &&
+                elements == that.elements &&
+                Arrays.equals(reads, that.reads) &&
+                Arrays.equals(writes, that.writes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * Boolean.hashCode(output) + Arrays.hashCode(reads)) + Arrays.hashCode(writes))
+                + 31 * (31 * Boolean.hashCode(identity) + Boolean.hashCode(local)) + Boolean.hashCode(elements);
+    }
+}
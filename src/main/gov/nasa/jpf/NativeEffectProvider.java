@@ -0,0 +1,18 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.MethodInfo;
+
+
+/**
+ * Source of {@link NativeEffect}s for native methods, configured with
+ * summary.natives.providers. Providers are asked before the descriptor tables,
+ * once per native method. Implementations need a public constructor that
+ * takes a Config, or a default one.
+ */
+public interface NativeEffectProvider {
+
+    /**
+     * The effect of the native method, or null if this provider doesn't know it.
+     **/
+    NativeEffect getEffect(MethodInfo mi);
+}
@@ -0,0 +1,157 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.ClassInfo;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.MethodInfo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+
+/**
+ * The effects of native methods, from the configured providers and descriptor tables.
+ * Tables map full method names to {@link NativeEffect} descriptors, e.g.
+ * <pre>
+ * java.lang.Math.abs(I)I = pure
+ * </pre>
+ * The bundled natives.properties is read first, then summary.natives.files, then the
+ * summary.native.&lt;method&gt; entries of the config, later entries win.
+ * Effects are resolved once per method, with their fields looked up in the declaring class.
+ */
+class NativeEffects {
+    private static final String BUNDLED = "natives.properties";
+    private static final String ENTRY_PREFIX = "summary.native.";
+
+    private final NativeEffectProvider[] providers;
+    private final Map<String, NativeEffect> table = new HashMap<>();
+
+    private final MethodTable<Resolved> resolved = new MethodTable<>();
+    private final BitSet seen = new BitSet();
+
+    /**
+     * A NativeEffect with its fields resolved for one method.
+     */
+    static class Resolved {
+        final boolean output;
+        final FieldInfo[] reads;
+        final FieldInfo[] writes;
+        final boolean identity;
+        final boolean local;
+        final boolean elements;
+
+        Resolved(boolean output, FieldInfo[] reads, FieldInfo[] writes, boolean identity, boolean local, boolean elements) {
+            this.output = output;
+            this.reads = reads;
+            this.writes = writes;
+            this.identity = identity;
+            this.local = local;
+            this.elements = elements;
+        }
+    }
+
+    NativeEffects(Config config) {
+        //  @jpfoption summary.natives.providers : String - NativeEffectProvider classes, asked before the tables (default=none).
+        NativeEffectProvider[] configured = config.getInstances("summary.natives.providers", NativeEffectProvider.class);
+        providers = configured != null ? configured : new NativeEffectProvider[0];
+
+        try (InputStream in = NativeEffects.class.getResourceAsStream(BUNDLED)) {
+            if (in != null) {
+                load(in);
+            }
+        } catch (IOException e) {
+            throw new JPFConfigException("can't read " + BUNDLED + ": " + e.getMessage());
+        }
+
+        //  @jpfoption summary.natives.files : String - comma separated descriptor files or classpath resources (default=none).
+        String[] files = config.getStringArray("summary.natives.files");
+        if (files != null) {
+            for (String file : files) {
+                loadFile(file);
+            }
+        }
+
+        //  @jpfoption summary.native.<method> : String - effect of one native method, e.g. summary.native.java.lang.Math.abs(I)I=pure.
+        for (Object key : config.keySet()) {
+            String name = key.toString();
+            if (name.startsWith(ENTRY_PREFIX) && name.contains("(")) {
+                table.put(name.substring(ENTRY_PREFIX.length()), NativeEffect.parse(config.getString(name)));
+            }
+        }
+    }
+
+    private void loadFile(String file) {
+        try (InputStream in = open(file)) {
+            if (in == null) {
+                throw new JPFConfigException("native effect descriptors not found: " + file);
+            }
+            load(in);
+        } catch (IOException e) {
+            throw new JPFConfigException("can't read native effect descriptors " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static InputStream open(String file) throws IOException {
+        File f = new File(file);
+        if (f.isFile()) {
+            return new FileInputStream(f);
+        }
+        return NativeEffects.class.getClassLoader().getResourceAsStream(file);
+    }
+
+    private void load(InputStream in) throws IOException {
+        Properties descriptors = new Properties();
+        descriptors.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        for (String method : descriptors.stringPropertyNames()) {
+            table.put(method, NativeEffect.parse(descriptors.getProperty(method)));
+        }
+    }
+
+    /**
+     * The effect of the native method, or null if it is unknown.
+     **/
+    Resolved get(MethodInfo mi, int methodId) {
+        if (!seen.get(methodId)) {
+            seen.set(methodId);
+            resolved.put(methodId, resolve(mi));
+        }
+        return resolved.get(methodId);
+    }
+
+    private Resolved resolve(MethodInfo mi) {
+        NativeEffect effect = null;
+        for (NativeEffectProvider provider : providers) {
+            effect = provider.getEffect(mi);
+            if (effect != null) {
+                break;
+            }
+        }
+        if (effect == null) {
+            effect = table.get(mi.getFullName());
+        }
+        if (effect == null) {
+            return null;
+        }
+        return new Resolved(effect.isOutput(), resolveFields(mi, effect.getReads()), resolveFields(mi, effect.getWrites()),
+                effect.isIdentity(), effect.isLocal(), effect.readsElements());
+    }
+
+    private static FieldInfo[] resolveFields(MethodInfo mi, String[] names) {
+        ClassInfo ci = mi.getClassInfo();
+        FieldInfo[] fields = new FieldInfo[names.length];
+        for (int i = 0; i < names.length; i++) {
+            FieldInfo fi = mi.isStatic() ? null : ci.getInstanceField(names[i]);
+            if (fi == null) {
+                fi = ci.getStaticField(names[i]);
+            }
+            if (fi == null) {
+                throw new JPFConfigException("unknown field " + names[i] + " in the native effect of " + mi.getFullName());
+            }
+            fields[i] = fi;
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,55 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.VM;
+
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Collects the output that VM.print receives while a native method with an output effect
+ * runs, the ConsoleOutputStream peers print the application's output there for System.out
+ * and System.err alike. It is taken from the path output the VM keeps for the current
+ * transition, so output of listeners or JPF itself isn't part of it. Without
+ * vm.path_output the VM doesn't keep it, and output can't be captured.
+ */
+class OutputCapture {
+    // the length of the VM's pending output when the capture started, -1 if not capturing
+    private int start = -1;
+
+    boolean isCapturing() {
+        return start >= 0;
+    }
+
+    void start(VM vm) {
+        if (isCapturing()) {
+            return;
+        }
+        start = pendingLength(vm);
+    }
+
+    /**
+     * Adds what VM.print received since start to {@code mods}, if any.
+     **/
+    void stop(VM vm, MethodModifications mods) {
+        String pending = vm.getPendingOutput();
+        // the pending output is reset when a transition ends
+        int from = pending != null && pending.length() >= start ? start : 0;
+        start = -1;
+        if (mods != null && pending != null && pending.length() > from) {
+            mods.addOutput(false, pending.substring(from).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static int pendingLength(VM vm) {
+        String pending = vm.getPendingOutput();
+        return pending == null ? 0 : pending.length();
+    }
+
+    /**
+     * Prints captured output through {@code vm}, like the ConsoleOutputStream natives do,
+     * so that it is part of the path output as well.
+     **/
+    static void replay(VM vm, byte[] bytes) {
+        vm.print(new String(bytes, StandardCharsets.UTF_8));
+    }
+}
@@ -1,102 +1,266 @@
 package gov.nasa.jpf;
 
+import gov.nasa.jpf.jvm.bytecode.JVMInvokeInstruction;
 import gov.nasa.jpf.search.Search;
 import gov.nasa.jpf.vm.ChoiceGenerator;
 import gov.nasa.jpf.vm.ElementInfo;
 import gov.nasa.jpf.vm.Instruction;
+import gov.nasa.jpf.vm.MethodInfo;
+import gov.nasa.jpf.vm.ThreadChoiceGenerator;
 import gov.nasa.jpf.vm.ThreadInfo;
 import gov.nasa.jpf.vm.VM;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 public class RecordingListener extends ListenerAdapter {
-    static CounterContainer counterContainer = new CounterContainer();
+    // all the sets below are indexed by the ids of this registry
+    static MethodIdRegistry methodIds = new MethodIdRegistry();
+    static CounterContainer counterContainer = new CounterContainer(methodIds);
 
-    // contains the names of the methods that should never be recorded
+    // contains the methods that should never be recorded
     // this could be because they are interrupted by a transition
     // or because they call native methods that we can't track
-    static HashSet<String> blackList = new HashSet<>();
+    static BitSet blackList = new BitSet();
 
-    // contains the names of the methods that have been recorded as
+    // contains the methods that have been recorded as
     // doing a complete call-return cycle within a single transition
-    static HashSet<String> recorded = new HashSet<>();
-    // contains the names of the methods currently being recorded
-    static HashSet<String> recording = new HashSet<>();
+    static BitSet recorded = new BitSet();
 
-    private void stopRecording() {
-        for (String methodName : recording) {
-            assert (!recorded.contains(methodName));
+    // the recordings in flight, per thread id
+    static LongMap<ThreadRecording> threads = new LongMap<>();
+    static int currentThread = -1;
+    // contains the methods currently being recorded by the current thread
+    static BitSet recording = new BitSet();
+    // the contexts and modifications of the invocations on the current thread's call stack
+    static RecordingStack recordingStack = new RecordingStack();
+
+    // the data choice generators whose branches are being recorded, innermost last
+    static List<BranchPoint> branchPoints = new ArrayList<>();
+
+    static class ThreadRecording {
+        BitSet recording = new BitSet();
+        RecordingStack stack = new RecordingStack();
+    }
+
+    static void resetThreads() {
+        threads = new LongMap<>();
+        currentThread = -1;
+        recording = new BitSet();
+        recordingStack = new RecordingStack();
+        branchPoints = new ArrayList<>();
+    }
+
+    /**
+     * Makes the recordings of {@code ti} the current ones. A thread switch only suspends
+     * the recordings of the other threads, they are resumed unless another thread has
+     * accessed what they read or wrote in the meantime, which makes those objects shared.
+     */
+    void select(ThreadInfo ti) {
+        int id = ti.getId();
+        if (id == currentThread) {
+            return;
+        }
+        currentThread = id;
+        ThreadRecording state = threads.get(id);
+        if (state == null) {
+            state = new ThreadRecording();
+            threads.put(id, state);
+        }
+        recording = state.recording;
+        recordingStack = state.stack;
+
+        if (!recordingStack.isEmpty() && recordingStack.touchesSharedObjects(ti)) {
+            blacklistAndResetRecording("accessed by another thread");
+        }
+    }
+
+    void blacklistAndResetRecording(String reason) {
+        for (int methodId = recording.nextSetBit(0); methodId >= 0; methodId = recording.nextSetBit(methodId + 1)) {
+            // another thread may have completed a recording of the method meanwhile
+            if (recorded.get(methodId)) {
+                continue;
+            }
+            counterContainer.countInterruptedRecording(methodId, reason);
+            blackList.set(methodId);
+        }
+
+        recording.clear();
+        recordingStack.clear();
+    }
+
+    void stopRecording() {
+        for (int methodId = recording.nextSetBit(0); methodId >= 0; methodId = recording.nextSetBit(methodId + 1)) {
+            if (recorded.get(methodId)) {
+                continue;
+            }
             // not conditional, as these interruptions will  override any others
-            counterContainer.overrideReasonForInterruption(methodName);
-            blackList.add(methodName);
+            counterContainer.overrideReasonForInterruption(methodId);
+            blackList.set(methodId);
         }
 
-        recording = new HashSet<>();
+        recording.clear();
+        recordingStack.clear();
     }
 
-    @Override
-    public void threadInterrupted(VM vm, ThreadInfo interruptedThread) {
+    /**
+     * Stops the recordings of {@code ti}, the recordings of the other threads go on.
+     */
+    void stopRecording(ThreadInfo ti) {
+        select(ti);
         stopRecording();
     }
 
-    @Override
-    public void objectLocked(VM vm, ThreadInfo currentThread, ElementInfo lockedObject) {
-        stopRecording();
+    private void stopAllRecordings() {
+        for (int i = threads.nextIndex(0); i >= 0; i = threads.nextIndex(i + 1)) {
+            ThreadRecording state = threads.valueAt(i);
+            recording = state.recording;
+            recordingStack = state.stack;
+            stopRecording();
+        }
+        currentThread = -1;
     }
 
     @Override
-    public void objectUnlocked(VM vm, ThreadInfo currentThread, ElementInfo unlockedObject) {
-        stopRecording();
+    public void threadInterrupted(VM vm, ThreadInfo interruptedThread) {
+        stopRecording(interruptedThread);
     }
 
     @Override
-    public void objectWait(VM vm, ThreadInfo currentThread, ElementInfo waitingObject) {
-        stopRecording();
+    public void threadTerminated(VM vm, ThreadInfo terminatedThread) {
+        select(terminatedThread);
+        recording.clear();
+        recordingStack.clear();
     }
 
-    @Override
-    public void objectNotify(VM vm, ThreadInfo currentThread, ElementInfo notifyingObject) {
-        stopRecording();
+    /**
+     * A lock that another thread can hold has to be scheduled, which ends the recording.
+     * Locks on objects only the current thread can reach never block, they don't
+     * interrupt the recordings and are checked again when the summary is applied.
+     */
+    static boolean isContended(VM vm, ElementInfo lock) {
+        return vm.getThreadList().getCount().alive > 1 && lock.isShared();
     }
 
-    @Override
-    public void objectNotifyAll(VM vm, ThreadInfo currentThread, ElementInfo notifyingObject) {
-        stopRecording();
+    void lockAcquired(ThreadInfo ti, ElementInfo lock) {
+        select(ti);
+        if (isContended(ti.getVM(), lock)) {
+            stopRecording();
+            return;
+        }
+        RecordingStack.Frame top = recordingStack.peek();
+        if (top != null) {
+            top.mods.addLock(lock);
+        }
+    }
+
+    void lockReleased(ThreadInfo ti, ElementInfo lock) {
+        if (isContended(ti.getVM(), lock)) {
+            stopRecording(ti);
+        }
     }
 
     @Override
-    public void objectExposed(VM vm, ThreadInfo currentThread, ElementInfo fieldOwnerObject, ElementInfo exposedObject) {
-        stopRecording();
+    public void objectLocked(VM vm, ThreadInfo currentThread, ElementInfo lockedObject) {
+        // the lock of a synchronized method is recorded once its frame is pushed, see SummaryCreator.invoked
+        Instruction pc = currentThread.getPC();
+        if (pc instanceof JVMInvokeInstruction) {
+            MethodInfo mi = ((JVMInvokeInstruction) pc).getInvokedMethod();
+            if (mi != null && mi.isSynchronized()) {
+                return;
+            }
+        }
+        lockAcquired(currentThread, lockedObject);
     }
 
     @Override
-    public void objectShared(VM vm, ThreadInfo currentThread, ElementInfo sharedObject) {
-        stopRecording();
+    public void objectUnlocked(VM vm, ThreadInfo currentThread, ElementInfo unlockedObject) {
+        lockReleased(currentThread, unlockedObject);
     }
 
     @Override
-    public void choiceGeneratorRegistered(VM vm, ChoiceGenerator<?> nextCG, ThreadInfo currentThread, Instruction executedInstruction) {
-        stopRecording();
+    public void objectWait(VM vm, ThreadInfo currentThread, ElementInfo waitingObject) {
+        // waiting always blocks the thread
+        stopRecording(currentThread);
     }
 
+    // nobody can wait on an object that only the current thread can reach
+
     @Override
-    public void choiceGeneratorSet(VM vm, ChoiceGenerator<?> newCG) {
-        stopRecording();
+    public void objectNotify(VM vm, ThreadInfo currentThread, ElementInfo notifyingObject) {
+        lockReleased(currentThread, notifyingObject);
     }
 
     @Override
-    public void choiceGeneratorAdvanced(VM vm, ChoiceGenerator<?> currentCG) {
-        stopRecording();
+    public void objectNotifyAll(VM vm, ThreadInfo currentThread, ElementInfo notifyingObject) {
+        lockReleased(currentThread, notifyingObject);
+    }
+
+    /**
+     * Called once the search has explored all choices of the branch point,
+     * with the recordings that completed in every branch.
+     */
+    void branchesExplored(BranchPoint branchPoint) {
     }
 
     @Override
     public void stateAdvanced(Search search) {
-        stopRecording();
+        // a thread choice only suspends the recording, other choices decide what the recorded
+        // methods do, so they are recorded once per choice. The transition has ended at
+        // the choice generator, which works the same in summary.mode=instructions
+        VM vm = search.getVM();
+        ChoiceGenerator<?> cg = vm.getNextChoiceGenerator();
+        if (cg == null || cg instanceof ThreadChoiceGenerator) {
+            return;
+        }
+        ThreadInfo ti = vm.getCurrentThread();
+        select(ti);
+        if (recording.isEmpty()) {
+            return;
+        }
+        // choices within a branch would need a summary per combination of choices, and a
+        // visited state is not explored again, so its branches can't be recorded
+        if (!search.isNewState() || recordingStack.isBranched() || cg.getTotalNumberOfChoices() < 1) {
+            stopRecording();
+            return;
+        }
+        branchPoints.add(new BranchPoint(search.getStateId(), search.getDepth(), ti.getId(), cg, recordingStack, recording));
     }
 
     @Override
     public void stateBacktracked(Search search) {
-        stopRecording();
+        // the recordings belong to the path that has been left
+        stopAllRecordings();
+
+        // branch points below the state are fully explored, the one at the
+        // state continues with the next choice if there is one
+        int depth = search.getDepth();
+        while (!branchPoints.isEmpty()) {
+            BranchPoint branchPoint = branchPoints.get(branchPoints.size() - 1);
+            if (branchPoint.depth < depth) {
+                break;
+            }
+            if (branchPoint.depth == depth && branchPoint.stateId == search.getStateId()) {
+                RecordingStack next = branchPoint.nextBranch();
+                if (next != null) {
+                    ThreadRecording state = threads.get(branchPoint.threadId);
+                    state.stack = next;
+                    state.recording = branchPoint.getRecording();
+                    currentThread = -1;
+                    break;
+                }
+            }
+            branchPoints.remove(branchPoints.size() - 1);
+            branchesExplored(branchPoint);
+        }
+    }
+
+    @Override
+    public void stateRestored(Search search) {
+        // searches that jump between states don't explore the choices of a state in one go
+        stopAllRecordings();
+        branchPoints.clear();
     }
 
 }
@@ -0,0 +1,187 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.MJIEnv;
+import gov.nasa.jpf.vm.ThreadInfo;
+
+/**
+ * The methods on the call stack that collect context and modifications, innermost last.
+ * Field accesses only go into the innermost frame, and are merged into the
+ * caller's frame when the method returns, so a field access costs the same
+ * no matter how many methods are being recorded.
+ * Frames and their contexts are reused, so memory is bounded by the stack depth.
+ */
+class RecordingStack {
+    private static final Object[] NO_ARGS = new Object[0];
+
+    static class Frame {
+        // ThreadInfo stack depth of the invoked method
+        int depth;
+        int methodId;
+        // false for frames that only collect fields on behalf of their callers
+        boolean recording;
+        MethodContext context;
+        MethodModifications mods;
+        // set if the frame was on the stack when a data choice generator was registered
+        BranchPoint branchPoint;
+    }
+
+    private Frame[] frames = new Frame[32];
+    private int top = -1;
+
+    boolean isEmpty() {
+        return top < 0;
+    }
+
+    Frame peek() {
+        return top < 0 ? null : frames[top];
+    }
+
+    /**
+     * Pushes a frame for a method that is recorded, the context is reused
+     * unless it has been handed to the SummaryContainer.
+     */
+    Frame push(int depth, int methodId, int calleeRef, Object[] args, boolean[] loadedArgs) {
+        Frame frame = nextFrame(depth, methodId, true);
+        if (frame.context == null) {
+            frame.context = new MethodContext(calleeRef, args, loadedArgs);
+            frame.mods = new MethodModifications(args);
+        } else {
+            frame.context.reset(calleeRef, args, loadedArgs);
+            frame.mods.reset(args);
+        }
+        return frame;
+    }
+
+    /**
+     * Pushes a frame for a method that isn't recorded itself, but whose
+     * field accesses have to reach the recording callers.
+     */
+    Frame pushPassThrough(int depth, int methodId) {
+        Frame frame = nextFrame(depth, methodId, false);
+        if (frame.context == null) {
+            frame.context = new MethodContext(NO_ARGS);
+            frame.mods = new MethodModifications(NO_ARGS);
+        } else {
+            frame.context.reset(MJIEnv.NULL, NO_ARGS, null);
+            frame.mods.reset(NO_ARGS);
+        }
+        return frame;
+    }
+
+    private Frame nextFrame(int depth, int methodId, boolean recording) {
+        top++;
+        if (top == frames.length) {
+            Frame[] newFrames = new Frame[frames.length * 2];
+            System.arraycopy(frames, 0, newFrames, 0, frames.length);
+            frames = newFrames;
+        }
+        Frame frame = frames[top];
+        if (frame == null) {
+            frame = new Frame();
+            frames[top] = frame;
+        }
+        frame.depth = depth;
+        frame.methodId = methodId;
+        frame.recording = recording;
+        frame.branchPoint = null;
+        return frame;
+    }
+
+    /**
+     * Removes the innermost frame and merges its fields into the caller's frame.
+     * The returned frame stays valid until the next push.
+     */
+    Frame pop() {
+        Frame frame = frames[top--];
+        if (top >= 0) {
+            frames[top].context.addContextFields(frame.context, frames[top].mods);
+            frames[top].mods.addModificationFields(frame.mods);
+        }
+        return frame;
+    }
+
+    /**
+     * Hands the context and modifications of a popped frame over to a summary,
+     * so that the frame gets new ones when it is reused.
+     */
+    static void release(Frame frame) {
+        frame.context = null;
+        frame.mods = null;
+    }
+
+    boolean isRecording(int methodId) {
+        for (int i = 0; i <= top; i++) {
+            if (frames[i].recording && frames[i].methodId == methodId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * True if an object that a frame read or wrote has become shared, i.e. another
+     * thread has accessed it while the recordings were suspended.
+     */
+    boolean touchesSharedObjects(ThreadInfo ti) {
+        for (int i = 0; i <= top; i++) {
+            if (frames[i].context.readsSharedObjects(ti) || frames[i].mods.writesSharedObjects(ti)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int size() {
+        return top + 1;
+    }
+
+    Frame get(int i) {
+        return frames[i];
+    }
+
+    int indexOf(int depth) {
+        for (int i = 0; i <= top; i++) {
+            if (frames[i].depth == depth) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * True if a frame still belongs to the recordings of a choice generator's branches.
+     */
+    boolean isBranched() {
+        for (int i = 0; i <= top; i++) {
+            if (frames[i].branchPoint != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void markBranched(BranchPoint branchPoint) {
+        for (int i = 0; i <= top; i++) {
+            frames[i].branchPoint = branchPoint;
+        }
+    }
+
+    /**
+     * A deep copy, the frames get contexts and modifications of their own.
+     */
+    RecordingStack copy() {
+        RecordingStack copy = new RecordingStack();
+        for (int i = 0; i <= top; i++) {
+            Frame frame = frames[i];
+            Frame frameCopy = copy.nextFrame(frame.depth, frame.methodId, frame.recording);
+            frameCopy.context = frame.context.copy();
+            frameCopy.mods = frame.mods.copy();
+            frameCopy.branchPoint = frame.branchPoint;
+        }
+        return copy;
+    }
+
+    void clear() {
+        top = -1;
+    }
+}
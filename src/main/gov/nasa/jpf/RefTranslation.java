@@ -0,0 +1,60 @@
+package gov.nasa.jpf;
+
+
+/**
+ * Maps the objects a summary was recorded on to the corresponding objects of the
+ * invocation it is applied to, see MethodContext.matchStructure. Objects that are
+ * not mapped stay the same, and no two recorded objects are mapped to the same one,
+ * so the summary sees the same aliasing between objects as the recording did.
+ */
+class RefTranslation {
+    static final RefTranslation IDENTITY = new RefTranslation();
+
+    // keyed by the recorded objRef
+    private final LongMap<Integer> refs = new LongMap<>();
+    // the objRefs mapped to, keyed by objRef
+    private final LongMap<Boolean> images = new LongMap<>();
+    private boolean identity = true;
+
+    boolean isIdentity() {
+        return identity;
+    }
+
+    int translate(int objRef) {
+        if (identity) {
+            return objRef;
+        }
+        Integer ref = refs.get(objRef);
+        return ref == null ? objRef : ref;
+    }
+
+    /**
+     * Maps {@code recorded} to {@code current}, false if that contradicts an earlier mapping.
+     **/
+    boolean map(int recorded, int current) {
+        Integer ref = refs.get(recorded);
+        if (ref != null) {
+            return ref == current;
+        }
+        if (images.containsKey(current)) {
+            return false;
+        }
+        refs.put(recorded, current);
+        images.put(current, Boolean.TRUE);
+        if (recorded != current) {
+            identity = false;
+        }
+        return true;
+    }
+
+    /**
+     * True if {@code objRef} is left as it is, and no other object is mapped to it.
+     **/
+    boolean keeps(int objRef) {
+        Integer ref = refs.get(objRef);
+        if (ref != null) {
+            return ref == objRef;
+        }
+        return !images.containsKey(objRef);
+    }
+}
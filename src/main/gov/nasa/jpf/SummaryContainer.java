@@ -1,6 +1,10 @@
 package gov.nasa.jpf;
 
+import gov.nasa.jpf.util.StringMatcher;
 import gov.nasa.jpf.vm.ElementInfo;
+import gov.nasa.jpf.vm.MJIEnv;
+import gov.nasa.jpf.vm.StackFrame;
+import gov.nasa.jpf.vm.ThreadInfo;
 
 import java.util.*;
 
@@ -9,81 +13,261 @@ import java.util.*;
  * Helper class that provides the ability to store multiple summaries for a single method.
  */
 class SummaryContainer {
-    private Map<String, List<MethodSummary>> container;
-    // the maximum number of contexts which we capture
-    private static final int CAPACITY = 100;
+    private final MethodIdRegistry methodIds;
+    private final LoadedArguments loadedArguments;
+    private MethodTable<List<MethodSummary>> container;
+    // per method, the summaries bucketed by MethodContext.fingerprint,
+    // a LongMap so that looking up a bucket doesn't box the fingerprint
+    private MethodTable<LongMap<List<MethodSummary>>> index;
 
-    SummaryContainer() {
-        container = new HashMap<>();
+    // the maximum number of contexts which we capture, unless overridden per method
+    private static final int DEFAULT_CAPACITY = 100;
+    private final int capacity;
+    private final List<StringMatcher> capacityPatterns;
+    private final List<Integer> patternCapacities;
+    private final MethodTable<Integer> methodCapacities;
+
+    private final EvictionPolicy evictionPolicy;
+    // logical time, advanced on every lookup
+    private long now;
+
+    // match receivers and reference arguments by what the method read from them instead of identity
+    private boolean structural;
+    // how the objects of the summary last returned by hasMatchingContext map to those of the call
+    private RefTranslation translation = RefTranslation.IDENTITY;
+
+    SummaryContainer(MethodIdRegistry methodIds, int capacity, EvictionPolicy evictionPolicy) {
+        this.methodIds = methodIds;
+        loadedArguments = new LoadedArguments(methodIds);
+        container = new MethodTable<>();
+        index = new MethodTable<>();
+        this.capacity = capacity;
+        this.evictionPolicy = evictionPolicy;
+        capacityPatterns = new ArrayList<>();
+        patternCapacities = new ArrayList<>();
+        methodCapacities = new MethodTable<>();
+    }
+
+    SummaryContainer(Config config, MethodIdRegistry methodIds) {
+        //  @jpfoption summary.capacity : int - maximum number of summaries stored per method (default=100).
+        //  @jpfoption summary.eviction : String - none, lru, lfu or hitrate (default=lru).
+        this(methodIds, config.getInt("summary.capacity", DEFAULT_CAPACITY),
+                EvictionPolicy.fromString(config.getString("summary.eviction", "lru")));
+
+        //  @jpfoption summary.capacity.methods : String - comma separated per-method capacities as
+        //  pattern:capacity, e.g. "java.lang.*:10,*.write(I)V:500", the first matching pattern wins.
+        // split by hand, full method names contain the ';' that is a list delimiter for Config
+        String overrides = config.getString("summary.capacity.methods");
+        if (overrides != null && !overrides.trim().isEmpty()) {
+            for (String override : overrides.split(",")) {
+                int separator = override.lastIndexOf(':');
+                if (separator <= 0) {
+                    throw new JPFConfigException("summary.capacity.methods entry is not pattern:capacity: " + override);
+                }
+                capacityPatterns.add(new StringMatcher(override.substring(0, separator).trim()));
+                patternCapacities.add(Integer.parseInt(override.substring(separator + 1).trim()));
+            }
+        }
+
+        //  @jpfoption summary.match : String - identity or structural, whether receivers and reference
+        //  arguments match only the same objects, or any objects the method reads the same values from (default=identity).
+        String match = config.getString("summary.match", "identity");
+        if (match.equals("structural")) {
+            structural = true;
+        } else if (!match.equals("identity")) {
+            throw new JPFConfigException("unknown summary.match: " + match);
+        }
+    }
+
+    boolean isStructural() {
+        return structural;
     }
 
-    void addSummary(String methodName, MethodContext context, MethodModifications mods) {
-        List<MethodSummary> summaries = container.get(methodName);
+    private int getCapacity(int methodId) {
+        Integer methodCapacity = methodCapacities.get(methodId);
+        if (methodCapacity == null) {
+            methodCapacity = capacity;
+            String methodName = methodIds.getName(methodId);
+            for (int i = 0; i < capacityPatterns.size(); i++) {
+                if (capacityPatterns.get(i).matches(methodName)) {
+                    methodCapacity = patternCapacities.get(i);
+                    break;
+                }
+            }
+            methodCapacities.put(methodId, methodCapacity);
+        }
+        return methodCapacity;
+    }
+
+    void addSummary(int methodId, MethodContext context, MethodModifications mods) {
+        add(methodId, new MethodSummary(context, mods));
+    }
+
+    /**
+     * Adds a summary with one branch per choice of the data choice generator the method registered.
+     */
+    void addSummary(int methodId, MethodContext context, MethodModifications[] branches, Object[] choices) {
+        add(methodId, new MethodSummary(context, branches, choices));
+    }
+
+    private void add(int methodId, MethodSummary summary) {
+        List<MethodSummary> summaries = container.get(methodId);
         if (summaries == null) {
             summaries = new ArrayList<>();
-            summaries.add(new MethodSummary(context, mods));
-            container.put(methodName, summaries);
-            return;
+            container.put(methodId, summaries);
         }
-        if (summaries.size() < CAPACITY) {
-            summaries.add(new MethodSummary(context, mods));
-            return;
+        int methodCapacity = getCapacity(methodId);
+        if (methodCapacity <= 0) {
+            throw new IndexOutOfBoundsException("Trying to add too many summaries for " + methodIds.getName(methodId));
+        }
+        if (summaries.size() >= methodCapacity) {
+            int victim = evictionPolicy.selectVictim(summaries, now);
+            if (victim < 0) {
+                throw new IndexOutOfBoundsException("Trying to add too many summaries for " + methodIds.getName(methodId));
+            }
+            evict(methodId, summaries.remove(victim));
         }
 
-        throw new IndexOutOfBoundsException("Trying to add too many summaries for " + methodName);
+        summary.created = now;
+        summary.lastUsed = now;
+        summaries.add(summary);
+        LongMap<List<MethodSummary>> buckets = index.get(methodId);
+        if (buckets == null) {
+            buckets = new LongMap<>();
+            index.put(methodId, buckets);
+        }
+        int fingerprint = summary.context.fingerprint(!structural);
+        List<MethodSummary> bucket = buckets.get(fingerprint);
+        if (bucket == null) {
+            bucket = new ArrayList<>(1);
+            buckets.put(fingerprint, bucket);
+        }
+        bucket.add(summary);
+    }
+
+    private void evict(int methodId, MethodSummary summary) {
+        // empty buckets stay in the map, they are likely to be refilled
+        index.get(methodId).get(summary.context.fingerprint(!structural)).remove(summary);
     }
 
-    boolean canStoreMoreSummaries(String methodName) {
-        List<MethodSummary> summaries = container.get(methodName);
-        return summaries == null || summaries.size() < CAPACITY;
+    boolean canStoreMoreSummaries(int methodId) {
+        int methodCapacity = getCapacity(methodId);
+        if (methodCapacity <= 0) {
+            return false;
+        }
+        List<MethodSummary> summaries = container.get(methodId);
+        return summaries == null || summaries.size() < methodCapacity || evictionPolicy != EvictionPolicy.NONE;
     }
 
-    boolean hasSummariesForMethod(String methodName) {
-        List<MethodSummary> summaries = container.get(methodName);
+    boolean hasSummariesForMethod(int methodId) {
+        List<MethodSummary> summaries = container.get(methodId);
         return summaries != null && summaries.size() > 0;
     }
 
-    MethodSummary hasMatchingContext(String methodName, ElementInfo calleeObject, Object[] args, boolean runningAlone) {
-        List<MethodSummary> summaries = container.get(methodName);
-        if (summaries == null) {
+    // upper bound on the ids of methods with summaries
+    int getMethodIdLimit() {
+        return container.size();
+    }
+
+    String getMethodName(int methodId) {
+        return methodIds.getName(methodId);
+    }
+
+    boolean[] getLoadedArguments(int methodId) {
+        return loadedArguments.get(methodId);
+    }
+
+    List<MethodSummary> getSummaries(int methodId) {
+        List<MethodSummary> summaries = container.get(methodId);
+        return summaries == null ? Collections.emptyList() : summaries;
+    }
+
+    private MethodSummary hit(MethodSummary summary) {
+        summary.hits++;
+        summary.lastUsed = now;
+        return summary;
+    }
+
+    /**
+     * Finds a summary for the call that is about to be made from {@code caller},
+     * comparing against the arguments on its operand stack without boxing them.
+     * {@code calleeRef} is MJIEnv.NULL for static methods.
+     * Summaries only match while the objects they read and write are not shared with other threads.
+     * See {@link #getTranslation} for the objects a structural match applies to.
+     */
+    MethodSummary hasMatchingContext(int methodId, ThreadInfo ti, StackFrame caller, byte[] argTypes, int calleeRef) {
+        now++;
+        LongMap<List<MethodSummary>> buckets = index.get(methodId);
+        if (buckets == null) {
             return null;
         }
-
-        for (MethodSummary summary : summaries) {
-            if (summary.context.match(calleeObject, args, runningAlone)) {
-                return summary;
+        boolean[] loadedArgs = loadedArguments.get(methodId);
+        if (structural || calleeRef == MJIEnv.NULL) {
+            int fingerprint = MethodContext.fingerprint(caller, argTypes, loadedArgs, MJIEnv.NULL);
+            return match(buckets.get(fingerprint), ti, caller, argTypes, calleeRef);
+        }
+        int fingerprint = MethodContext.fingerprint(caller, argTypes, loadedArgs, calleeRef);
+        MethodSummary summary = match(buckets.get(fingerprint), ti, caller, argTypes, calleeRef);
+        if (summary == null) {
+            // summaries that don't depend on the receiver are keyed by its class
+            ElementInfo callee = ti.getElementInfo(calleeRef);
+            if (callee != null) {
+                int classId = callee.getClassInfo().getUniqueId();
+                fingerprint = MethodContext.fingerprint(caller, argTypes, loadedArgs, classId);
+                summary = match(buckets.get(fingerprint), ti, caller, argTypes, calleeRef);
             }
         }
-        return null;
+        return summary;
     }
 
-    MethodSummary hasMatchingContext(String methodName, Object[] args, boolean runningAlone) {
-        List<MethodSummary> summaries = container.get(methodName);
+    private MethodSummary match(List<MethodSummary> summaries, ThreadInfo ti, StackFrame caller, byte[] argTypes, int calleeRef) {
         if (summaries == null) {
             return null;
         }
-
-        for (MethodSummary summary : summaries) {
-            if (summary.context.match(args, runningAlone)) {
-                return summary;
+        for (int i = 0; i < summaries.size(); i++) {
+            MethodSummary summary = summaries.get(i);
+            RefTranslation match = summary.context.match(ti, caller, argTypes, calleeRef);
+            if (match != null && summary.targetsThreadLocal(ti, match)) {
+                translation = match;
+                return hit(summary);
             }
         }
         return null;
     }
 
+    /**
+     * Maps the objects of the summary that hasMatchingContext returned last to the objects of the call.
+     */
+    RefTranslation getTranslation() {
+        return translation;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("{\"summaries\":[");
-        for (String methodName : container.keySet() ) {
-            sb.append("{\"" + methodName + "\":[");
-            Set<MethodSummary> uniqueSummaries = new HashSet<>(container.get(methodName));
+        for (int methodId = 0; methodId < container.size(); methodId++) {
+            List<MethodSummary> summaries = container.get(methodId);
+            if (summaries == null || summaries.isEmpty()) {
+                continue;
+            }
+            sb.append("{\"" + methodIds.getName(methodId) + "\":[");
+            Set<MethodSummary> uniqueSummaries = new HashSet<>(summaries);
             for(MethodSummary summary : uniqueSummaries) {
                 sb.append("{");
                 sb.append("\"context\":");
                 sb.append(summary.context);
-                sb.append(",\"modifications\":");
-                sb.append(summary.mods);
+                if (summary.branches != null) {
+                    sb.append(",\"branches\":[");
+                    for (int i = 0; i < summary.branches.length; i++) {
+                        sb.append(i == 0 ? "" : ",").append("{\"choice\":\"").append(summary.choices[i]).append("\",\"modifications\":");
+                        sb.append(summary.branches[i].mods).append("}");
+                    }
+                    sb.append("]");
+                } else {
+                    sb.append(",\"modifications\":");
+                    sb.append(summary.mods);
+                }
                 sb.append("},");
             }
             sb.deleteCharAt(sb.length() - 1);
@@ -8,24 +8,37 @@ import gov.nasa.jpf.vm.bytecode.FieldInstruction;
 import java.io.PrintWriter;
 import java.util.*;
 
-import static java.util.Collections.singletonList;
-
 /**
  * Listener implementing a method-summary utility.
  */
 public class SummaryCreator extends RecordingListener {
-    // contains the names of native method calls that are known not to have
-    // side-effects that can't be captured in the summary
-    private static Set<String> nativeWhiteList = new HashSet<>();
-
-    private static SummaryContainer container = new SummaryContainer();
-    private static Map<String, LinkedList<MethodContext>> contextMap = new HashMap<>();
-    private static Map<String, LinkedList<MethodModifications>> modificationMap = new HashMap<>();
-
+    // the effect models of the native methods, resolved per method id, see NativeEffects
+    private NativeEffects nativeEffects;
+    private final OutputCapture outputCapture = new OutputCapture();
+
+    private static SummaryContainer container;
+    // null unless summary.store is set
+    private final SummaryStore store;
+    // full or simple names of methods that should never be recorded
+    private static Set<String> blackListedNames = new HashSet<>();
+    // methods that have been checked against blackListedNames and the synthetic patterns
+    private static BitSet screened = new BitSet();
+
+    // the listener whose hooks the SummaryInstructionFactory instructions call,
+    // null unless summary.mode is instructions
+    static SummaryCreator active;
+
+    private final Config config;
+    private final boolean instructionMode;
     private final boolean skipInit;
+    private final boolean predicates;
+    // output is captured from the path output, see OutputCapture
+    private final boolean pathOutput;
     private final boolean logSummaryApplication = false;
     private final boolean applySummaries = true;
     private boolean skipped = false;
+    // the exception an ATHROW is about to throw, between executeInstruction and instructionExecuted
+    private int thrownRef = MJIEnv.NULL;
 
     private final PrintWriter out;
 
@@ -33,11 +46,32 @@ public class SummaryCreator extends RecordingListener {
     private MethodInfo miMain; // just to make init skipping more efficient
 
     public SummaryCreator(Config config) {
+        this.config = config;
         //  @jpfoption et.skip_init : boolean - do not log execution before entering main() (default=true).
         skipInit = config.getBoolean("et.skip_init", true);
         if (skipInit) {
             skip = true;
         }
+        //  @jpfoption summary.mode : String - listener, or instructions to only intercept invocations, returns
+        //  and field accesses through SummaryInstructionFactory, which has to be the jvm.insn_factory.class (default=listener).
+        String mode = config.getString("summary.mode", "listener");
+        if (mode.equals("instructions")) {
+            if (config.getClass("jvm.insn_factory.class") != SummaryInstructionFactory.class) {
+                throw new JPFConfigException("summary.mode=instructions requires jvm.insn_factory.class=" + SummaryInstructionFactory.class.getName());
+            }
+            instructionMode = true;
+            active = this;
+        } else if (mode.equals("listener")) {
+            instructionMode = false;
+            active = null;
+        } else {
+            throw new JPFConfigException("unknown summary.mode: " + mode);
+        }
+        //  @jpfoption summary.predicates : boolean - record the branch conditions int field reads are only
+        //  compared in instead of their values, so summaries also apply to other values that take the same branches (default=false).
+        predicates = config.getBoolean("summary.predicates", false);
+        pathOutput = config.getBoolean("vm.path_output", false);
+        store = SummaryStore.create(config);
         reinitialise();
 
         out = new PrintWriter(System.out, true);
@@ -46,38 +80,22 @@ public class SummaryCreator extends RecordingListener {
 
     // necessary for tests that re-run searches
     private void reinitialise() {
-        recorded = new HashSet<>();
-        recording = new HashSet<>();
-        blackList = new HashSet<>();
-        nativeWhiteList = new HashSet<>();
+        methodIds = new MethodIdRegistry();
+        recorded = new BitSet();
+        blackList = new BitSet();
+        blackListedNames = new HashSet<>();
+        screened = new BitSet();
+        nativeEffects = new NativeEffects(config);
 
-        container = new SummaryContainer();
-        contextMap = new HashMap<>();
-        counterContainer = new CounterContainer();
-        modificationMap = new HashMap<>();
+        container = new SummaryContainer(config, methodIds);
+        counterContainer = new CounterContainer(methodIds);
+        resetThreads();
 
 
         // Test gov.nasa.jpf.test.mc.basic.AttrsTest
         // This might actually be "OK",
         // if breaking attributes only affects other extensions, not core?
-        blackList.add("java.lang.Integer.intValue()I");
-
-        nativeWhiteList.add("matches");
-        nativeWhiteList.add("desiredAssertionStatus");
-        nativeWhiteList.add("print");
-        nativeWhiteList.add("println");
-        nativeWhiteList.add("min");
-        nativeWhiteList.add("max");
-    }
-
-    private void blacklistAndResetRecording(String reason) {
-        for (String methodName : recording) {
-            assert (!recorded.contains(methodName));
-            counterContainer.countInterruptedRecording(methodName, reason);
-            blackList.add(methodName);
-        }
-
-        recording = new HashSet<>();
+        blackListedNames.add("java.lang.Integer.intValue()I");
     }
 
     @Override
@@ -87,118 +105,187 @@ public class SummaryCreator extends RecordingListener {
         if (skip || mi == null) {
             return;
         }
+        select(ti);
 
         if (instructionToExecute instanceof JVMInvokeInstruction) {
             JVMInvokeInstruction call = (JVMInvokeInstruction) instructionToExecute;
-
-            mi = call.getInvokedMethod();
-            if (mi == null) {
-                return;
+            Instruction next = summaryApplied(vm, ti, call);
+            if (next != null) {
+                skipped = true;
+                ti.skipInstruction(next);
             }
-            String methodName = mi.getFullName();
+        } else if (instructionToExecute instanceof EXECUTENATIVE) {
+            nativeInvoked(ti, mi);
+        } else if (instructionToExecute instanceof ATHROW) {
+            // the operand stack is gone once the exception is thrown
+            thrownRef = ti.getTopFrame().peek();
+        } else if (instructionToExecute instanceof ARRAYLENGTH) {
+            arrayLengthRead(ti, ti.getTopFrame().peek());
+        }
+    }
 
-            if (container.hasSummariesForMethod(methodName)) {
-                if (applySummaries) {
-                    applySummary(methodName, vm, ti, mi, call);
-                }
+    /**
+     * Applies a matching summary instead of executing {@code call}. Returns the
+     * instruction to continue with, the one following the invocation or the handler
+     * of the exception the summary throws, or null if no summary was applied.
+     */
+    Instruction summaryApplied(VM vm, ThreadInfo ti, JVMInvokeInstruction call) {
+        MethodInfo mi = call.getInvokedMethod();
+        if (mi == null) {
+            return null;
+        }
+        int methodId = methodIds.getId(mi);
+
+        if (store != null) {
+            store.restore(mi, methodId, container);
+        }
+
+        if (container.hasSummariesForMethod(methodId)) {
+            if (applySummaries) {
+                return applySummary(methodId, vm, ti, mi, call);
             }
         }
+        return null;
     }
 
-    private void applySummary(String methodName, VM vm, ThreadInfo ti, MethodInfo mi, JVMInvokeInstruction call) {
-        counterContainer.countAttemptedSummaryMatch(methodName);
-
-        MethodSummary summary = getApplicableSummary(vm, ti, mi, call);
+    private Instruction applySummary(int methodId, VM vm, ThreadInfo ti, MethodInfo mi, JVMInvokeInstruction call) {
+        MethodSummary summary = chosenBranch(vm, ti, call);
+        RefTranslation translation = RefTranslation.IDENTITY;
         if (summary == null) {
-            return;
-        }
-        counterContainer.addMatchedArgumentsCount(methodName);
+            counterContainer.countAttemptedSummaryMatch(methodId);
 
+            summary = getApplicableSummary(methodId, vm, ti, mi, call);
+            if (summary == null) {
+                return null;
+            }
+            counterContainer.addMatchedArgumentsCount(methodId);
 
-        // ideally none of the targets should have been frozen
-        // but it seems like they are in log4j1 - fixed
-        if (summary.mods.anyTargetsAreFrozen()) {
-            return;
+            if (summary.branches != null) {
+                return registerBranches(vm, ti, call, summary);
+            }
+            translation = container.getTranslation();
+            if (!canApply(ti, summary, translation)) {
+                return null;
+            }
         }
 
-        // TODO: Get class in a different way that doesn't break in edge-cases
-        if (!summary.context.getDependentStaticFields().isEmpty()) {
-            return;
-        }
+        MethodModifications mods = summary.mods;
+        boolean createsException = mods.throwsException() && mods.getExceptionRef() == MJIEnv.NULL;
 
         // We need to ensure that context and modification information
-        // propagates down to other methods that might be recording
-        for (String r : recording) {
-            List<MethodContext> contexts = contextMap.get(r);
-            for (MethodContext context : contexts) {
-                context.addContextFields(summary.context);
-            }
-            List<MethodModifications> modifications = modificationMap.get(r);
-            for (MethodModifications modification : modifications) {
-                modification.addModificationFields(summary.mods);
-            }
+        // propagates down to other methods that might be recording,
+        // the innermost frame passes it on when it returns
+        RecordingStack.Frame top = recordingStack.peek();
+        if (top != null) {
+            top.context.addContextFields(summary.context, top.mods);
+            top.mods.addModificationFields(summary.mods);
         }
 
-        counterContainer.addTotalCalls(methodName);
+        counterContainer.addTotalCalls(methodId);
 
         if (logSummaryApplication) {
-            out.println("applied summary for " + methodName);
+            out.println("applied summary for " + methodIds.getName(methodId));
             out.println(summary.context);
             out.println(summary.mods);
         }
-        summary.mods.applyModifications();
+        int newObject = summary.plan.apply(ti, translation);
+        mods.replayOutput(vm);
 
         // at this point we want to make sure that we don't create another summary
         // like the one we just applied
-//        stopRecording(methodName);
-
-        skipped = true;
+//        stopRecording(methodId);
 
-        Instruction nextInstruction = call.getNext();
         StackFrame frame = ti.getModifiableTopFrame();
         frame.removeArguments(mi);
 
+        if (mods.throwsException()) {
+            if (createsException) {
+                return ti.createAndThrowException(mods.getExceptionClass(), mods.getExceptionMessage());
+            }
+            int exceptionRef = translation.translate(mods.getExceptionRef());
+            Instruction handler = ti.throwException(exceptionRef);
+            // the exception may leave recording callers as well
+            exceptionThrown(ti, exceptionRef);
+            return handler;
+        }
+
         String returnType = mi.getReturnType();
         if (returnType.equals("V")) {
-            ti.skipInstruction(nextInstruction);
-            return;
+            return call.getNext();
         }
 
-        Object returnValue = summary.mods.getReturnValue();
+        if (summary.plan.returnsAllocation()) {
+            frame.pushRef(newObject);
+            return call.getNext();
+        }
+        Object returnValue = mods.getReturnValue();
+        if (mods.returnsReference()) {
+            returnValue = translation.translate((Integer) returnValue);
+        }
         putReturnValueOnStackFrame(returnType, returnValue, frame, vm);
-        ti.skipInstruction(nextInstruction);
+        return call.getNext();
     }
 
-    private MethodSummary getApplicableSummary(VM vm, ThreadInfo ti, MethodInfo mi, JVMInvokeInstruction call) {
-        MethodSummary summary;
+    private boolean canApply(ThreadInfo ti, MethodSummary summary, RefTranslation translation) {
+        // the recording callers would have to know the fresh objects as their own allocations,
+        // so they execute the method instead. The same goes for a context on other objects
+        MethodModifications mods = summary.mods;
+        boolean createsException = mods.throwsException() && mods.getExceptionRef() == MJIEnv.NULL;
+        if ((summary.plan.allocates() || createsException || !translation.isIdentity()) && !recordingStack.isEmpty()) {
+            return false;
+        }
+        // a returned object that the summary doesn't allocate is looked up by its objRef
+        if (mods.returnsReference() && !summary.plan.returnsAllocation()
+                && ti.getElementInfo(translation.translate((Integer) mods.getReturnValue())) == null) {
+            return false;
+        }
+        return summary.plan.classesInitialized() && (!createsException || mods.getExceptionClass().isInitialized());
+    }
 
-        String methodName = mi.getFullName();
-        int runningThreads = vm.getThreadList().getCount().alive;
-        if (call instanceof INVOKESTATIC) {
-            summary = container.hasMatchingContext(methodName, call.getArgumentValues(ti), runningThreads == 1);
-        } else {
-            StackFrame top = ti.getTopFrame();
-            byte[] argTypes = mi.getArgumentTypes();
-            Object[] args = top.getArgumentsValues(ti, argTypes);
+    /**
+     * Registers a choice generator over the branches of {@code summary}, the invocation
+     * is executed again in the transitions that apply the chosen branch.
+     */
+    private Instruction registerBranches(VM vm, ThreadInfo ti, JVMInvokeInstruction call, MethodSummary summary) {
+        for (MethodSummary branch : summary.branches) {
+            if (!canApply(ti, branch, RefTranslation.IDENTITY)) {
+                return null;
+            }
+        }
+        if (vm.getSystemState().setNextChoiceGenerator(new BranchChoiceGenerator(call, summary))) {
+            return call;
+        }
+        return null;
+    }
+
+    // the branch to apply if the invocation is executed again after registerBranches
+    private MethodSummary chosenBranch(VM vm, ThreadInfo ti, JVMInvokeInstruction call) {
+        if (!ti.isFirstStepInsn()) {
+            return null;
+        }
+        ChoiceGenerator<?> cg = vm.getChoiceGenerator();
+        if (cg instanceof BranchChoiceGenerator && ((BranchChoiceGenerator) cg).call == call) {
+            return ((BranchChoiceGenerator) cg).getBranch();
+        }
+        return null;
+    }
 
-            ElementInfo calleeObject = ti.getElementInfo(top.getCalleeThis(mi));
-            // call.getArgumentValues() throws NPE here in log4j2 orig
-            // at line 890 of StackFrame, which is strange cause this is executing the same code
-            summary = container.hasMatchingContext(methodName, calleeObject, args, runningThreads == 1);
+    private MethodSummary getApplicableSummary(int methodId, VM vm, ThreadInfo ti, MethodInfo mi, JVMInvokeInstruction call) {
+        // the arguments are still on the caller's operand stack
+        StackFrame top = ti.getTopFrame();
+        byte[] argTypes = mi.getArgumentTypes();
+        int calleeRef = MJIEnv.NULL;
+        if (!(call instanceof INVOKESTATIC)) {
+            calleeRef = top.getCalleeThis(mi);
         }
+        MethodSummary summary = container.hasMatchingContext(methodId, ti, top, argTypes, calleeRef);
 
         if (summary == null) {
-            counterContainer.addFailedMatchCount(methodName);
+            counterContainer.addFailedMatchCount(methodId);
         }
         return summary;
     }
 
-    private void stopRecording(String methodName) {
-        contextMap.remove(methodName);
-        modificationMap.remove(methodName);
-        recording.remove(methodName);
-    }
-
     private void putReturnValueOnStackFrame(String returnType, Object returnValue, StackFrame frame, VM vm) {
         if (returnValue == null) {
             frame.pushRef(MJIEnv.NULL);
@@ -223,20 +310,9 @@ public class SummaryCreator extends RecordingListener {
             } else {
                 frame.push((Integer) returnValue);
             }
-            // method returns an object
+            // method returns an object, canApply has checked that it exists
         } else {
-            if (returnValue instanceof ElementInfo) {
-                ElementInfo returnObject = (ElementInfo) returnValue;
-                frame.pushRef(returnObject.getObjectRef());
-            } else {
-                if ((Integer) returnValue == MJIEnv.NULL) {
-                    return;
-                }
-                if (vm.getElementInfo((Integer) returnValue) == null) {
-                    return;
-                }
-                frame.pushRef((Integer) returnValue);
-            }
+            frame.pushRef((Integer) returnValue);
         }
     }
 
@@ -244,13 +320,10 @@ public class SummaryCreator extends RecordingListener {
     @Override
     public void instructionExecuted(VM vm, ThreadInfo ti, Instruction nextInsn, Instruction executedInsn) {
         MethodInfo mi = executedInsn.getMethodInfo();
-        if (skip) {
-            if (mi == miMain) {
-                skip = false;
-            } else {
-                return;
-            }
+        if (skipping(mi)) {
+            return;
         }
+        select(ti);
 
         //out.println(executedInsn);
         if (executedInsn instanceof JVMInvokeInstruction) {
@@ -260,102 +333,396 @@ public class SummaryCreator extends RecordingListener {
                 skipped = false;
                 return;
             }
+            invoked(vm, ti, (JVMInvokeInstruction) executedInsn, ti.getNextPC());
+        } else if (executedInsn instanceof JVMReturnInstruction) {
+            returned(ti, (JVMReturnInstruction) executedInsn);
+        } else if (executedInsn instanceof ATHROW) {
+            exceptionThrown(ti, thrownRef);
+        } else if (executedInsn instanceof EXECUTENATIVE) {
+            nativeExecuted(ti, mi);
+        } else if (executedInsn instanceof FieldInstruction) {
+            fieldAccessed(ti, (FieldInstruction) executedInsn, nextInsn);
+        } else if (executedInsn instanceof JVMArrayElementInstruction) {
+            JVMArrayElementInstruction insn = (JVMArrayElementInstruction) executedInsn;
+            arrayAccessed(ti, insn, insn.getArrayRef(ti), insn.getIndex(ti));
+        } else if (executedInsn instanceof NEW || executedInsn instanceof NEWARRAY
+                || executedInsn instanceof ANEWARRAY || executedInsn instanceof MULTIANEWARRAY) {
+            objectAllocated(ti, executedInsn, nextInsn);
+        }
+    }
 
-            JVMInvokeInstruction call = (JVMInvokeInstruction) executedInsn;
-            mi = call.getInvokedMethod(ti);
+    /**
+     * True while the instructions before main() are skipped, ends with the
+     * first instruction executed in main().
+     */
+    boolean skipping(MethodInfo mi) {
+        if (skip && mi == miMain) {
+            skip = false;
+        }
+        return skip;
+    }
 
-            if (mi == null)
-                return;
+    /**
+     * Starts recording the invoked method, {@code nextInsn} is what the
+     * invocation returned, the invocation itself if it is blocked.
+     */
+    void invoked(VM vm, ThreadInfo ti, JVMInvokeInstruction call, Instruction nextInsn) {
+        MethodInfo mi = call.getInvokedMethod(ti);
 
-            // if the invocation is blocked, do nothing
-            if (ti.getNextPC() == call)
-                return;
+        if (mi == null)
+            return;
 
-            String methodName = mi.getFullName();
-            int numberOfInstructions = mi.getNumberOfInstructions();
+        // if the invocation is blocked, do nothing
+        if (nextInsn == call)
+            return;
 
-            counterContainer.addMethodInvocation(methodName, numberOfInstructions);
+        int methodId = methodIds.getId(mi);
+        int numberOfInstructions = mi.getNumberOfInstructions();
 
+        counterContainer.addMethodInvocation(methodId, numberOfInstructions);
 
-            if (!recorded.contains(methodName)) {
-                recording.add(methodName);
-            }
+        // the invoked method is on top of the stack now, frames at
+        // or above its depth belong to methods that were left by an exception
+        int depth = ti.getStackDepth();
+        discardFrames(depth);
+
+        // constructors are part of the summary of the method that allocates
+        // the object, they aren't summarized themselves
+        boolean startRecording = !recorded.get(methodId) && !mi.isInit();
+        if (startRecording) {
+            recording.set(methodId);
+        } else if (recording.isEmpty()) {
+            // nobody is interested in what this method does
+            return;
+        }
+
+        if (methodStopsRecording(mi, methodId)) {
+            return;
+        }
 
-            if (methodStopsRecording(mi, methodName)) {
+        if (!startRecording) {
+            recordingStack.pushPassThrough(depth, methodId).context.addCodeClass(mi.getClassInfo());
+            synchronizedEntered(ti, mi, call);
+            return;
+        }
+
+        Object[] args = call.getArgumentValues(ti);
+        boolean isStatic = call instanceof INVOKESTATIC;
+        ElementInfo calleeObject = null;
+        // arguments the method never loads are left out of its context
+        boolean[] loadedArgs = container.getLoadedArguments(methodId);
+        if (isStatic) {
+            recordingStack.push(depth, methodId, MJIEnv.NULL, args, loadedArgs);
+        } else {
+            calleeObject = ti.getElementInfo(call.getLastObjRef());
+            if (calleeObject == null) {
+                blacklistAndResetRecording("faulty this");
                 return;
             }
+            recordingStack.push(depth, methodId, calleeObject.getObjectRef(), args, loadedArgs);
+        }
+        // a stored summary is dropped once the code that ran changes
+        recordingStack.peek().context.addCodeClass(mi.getClassInfo());
+        synchronizedEntered(ti, mi, call);
+    }
 
-            int runningThreads = vm.getThreadList().getCount().alive;
+    // the lock of a synchronized method is taken before its frame is pushed, it is
+    // recorded here in both modes so that it goes into the method's own frame
+    private void synchronizedEntered(ThreadInfo ti, MethodInfo mi, JVMInvokeInstruction call) {
+        if (mi.isSynchronized()) {
+            int lockRef = mi.isStatic() ? mi.getClassInfo().getClassObjectRef() : call.getLastObjRef();
+            lockAcquired(ti, ti.getElementInfo(lockRef));
+        }
+    }
+
+    void returned(ThreadInfo ti, JVMReturnInstruction ret) {
+        if (recordingStack.isEmpty()) {
+            return;
+        }
 
-            Object[] args = call.getArgumentValues(ti);
-            boolean isStatic = executedInsn instanceof INVOKESTATIC;
-            byte[] types = mi.getArgumentTypes();
-            for (byte type : types) {
-                if (type == Types.T_ARRAY) {
-                    blacklistAndResetRecording("array argument");
-                    return;
+        MethodInfo mi = ret.getMethodInfo();
+        int methodId = methodIds.getId(mi);
+
+        // the frame of the returning method has been popped already
+        int depth = ti.getStackDepth() + 1;
+        discardFrames(depth + 1);
+
+        RecordingStack.Frame top = recordingStack.peek();
+        if (top == null || top.depth != depth || top.methodId != methodId) {
+            return;
+        }
+
+        recordingStack.pop();
+        if (top.recording) {
+            Object returnValue = ret.getReturnValue(ti);
+            completeRecording(ti, top, mi, returnValue);
+        }
+    }
+
+    /**
+     * Completes the recordings of the methods that the exception {@code exceptionRef}
+     * has left, once the stack has been unwound to its handler.
+     */
+    void exceptionThrown(ThreadInfo ti, int exceptionRef) {
+        if (recordingStack.isEmpty()) {
+            return;
+        }
+        // throwing null throws a NullPointerException instead,
+        // the frames it leaves are discarded like for other exceptions
+        ElementInfo exception = ti.getElementInfo(exceptionRef);
+        if (exception == null) {
+            return;
+        }
+
+        int depth = ti.getStackDepth();
+        RecordingStack.Frame top = recordingStack.peek();
+        while (top != null && top.depth > depth) {
+            recordingStack.pop();
+            if (top.recording) {
+                if (top.mods.setException(exception)) {
+                    completeRecording(ti, top, methodIds.getMethodInfo(top.methodId), null);
+                } else if (!recordingStack.isRecording(top.methodId)) {
+                    recording.clear(top.methodId);
                 }
             }
+            top = recordingStack.peek();
+        }
+    }
 
-            LinkedList<MethodContext> contexts = contextMap.get(methodName);
-            MethodContext currentContext;
+    /**
+     * Records the fields that the native method {@code mi} reads, before it runs,
+     * or ends the recordings if its effects are unknown.
+     */
+    void nativeInvoked(ThreadInfo ti, MethodInfo mi) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (recording.isEmpty() || top == null)
+            return;
 
-            if (isStatic) {
-                currentContext = new MethodContext(args, runningThreads == 1);
-            } else {
-                if (ti.getElementInfo(call.getLastObjRef()) == null) {
-                    blacklistAndResetRecording("faulty this");
-                    return;
+        NativeEffects.Resolved effect = nativeEffects.get(mi, methodIds.getId(mi));
+        if (effect == null) {
+            blacklistAndResetRecording("native method");
+            return;
+        }
+        // the receiver's new state is captured on return only if the recording allocated it
+        if (effect.local && !top.mods.isNewObject(ti.getTopFrame().getThis())) {
+            blacklistAndResetRecording("native on an existing object");
+            return;
+        }
+        for (FieldInfo fi : effect.reads) {
+            recordRead(top, fi, fieldOwner(ti, fi), null);
+            if (recording.isEmpty()) {
+                return;
+            }
+        }
+        // the arguments are still on the caller's operand stack
+        top.context.addNativeOperands(ti.getTopFrame().getPrevious(), mi, top.mods);
+        if (effect.identity) {
+            top.context.addIdentities(ti.getTopFrame().getPrevious(), mi, top.mods);
+        }
+        if (effect.elements) {
+            byte[] argTypes = mi.getArgumentTypes();
+            for (int i = 0; i < argTypes.length; i++) {
+                if (argTypes[i] == Types.T_ARRAY) {
+                    int arrayRef = ti.getTopFrame().getPrevious().peek(MethodContext.argumentOffset(argTypes, i));
+                    recordArrayRead(ti, top, arrayRef);
+                    if (recording.isEmpty()) {
+                        return;
+                    }
                 }
-                currentContext = new MethodContext(ti.getElementInfo(call.getLastObjRef()), args, runningThreads == 1);
             }
-
-            if (contexts == null) {
-                contextMap.put(methodName, new LinkedList<>(singletonList(currentContext)));
-            } else {
-                contexts.addFirst(currentContext);
-                contextMap.put(methodName, contexts);
+        }
+        if (effect.output) {
+            if (!pathOutput) {
+                blacklistAndResetRecording("output without vm.path_output");
+                return;
             }
+            outputCapture.start(ti.getVM());
+        }
+    }
 
-            MethodModifications currentMods = new MethodModifications(args);
-            LinkedList<MethodModifications> stored = modificationMap.get(methodName);
+    /**
+     * Records the fields that the native method {@code mi} has written, and what it printed.
+     */
+    void nativeExecuted(ThreadInfo ti, MethodInfo mi) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (outputCapture.isCapturing()) {
+            outputCapture.stop(ti.getVM(), top == null ? null : top.mods);
+        }
+        if (recording.isEmpty() || top == null)
+            return;
 
-            if (stored == null) {
-                modificationMap.put(methodName, new LinkedList<>(singletonList(currentMods)));
-            } else {
-                stored.addFirst(currentMods);
-                modificationMap.put(methodName, stored);
+        // the native frame is gone if the method has thrown
+        if (ti.getTopFrame() == null || ti.getTopFrame().getMethodInfo() != mi) {
+            return;
+        }
+        NativeEffects.Resolved effect = nativeEffects.get(mi, methodIds.getId(mi));
+        if (effect == null) {
+            return;
+        }
+        for (FieldInfo fi : effect.writes) {
+            recordWrite(top, fi, fieldOwner(ti, fi));
+            if (recording.isEmpty()) {
+                return;
             }
-        } else if (executedInsn instanceof JVMReturnInstruction) {
-            JVMReturnInstruction ret = (JVMReturnInstruction) executedInsn;
-            mi = ret.getMethodInfo();
-            String methodName = mi.getFullName();
+        }
+    }
 
-            if (recording.contains(methodName)) {
-                Object returnValue = ret.getReturnValue(ti);
-                completeRecording(methodName, returnValue);
+    // a native reads all elements of the array, like an array load of each of them
+    private void recordArrayRead(ThreadInfo ti, RecordingStack.Frame top, int arrayRef) {
+        if (arrayRef == MJIEnv.NULL || top.mods.isNewObject(arrayRef)) {
+            return;
+        }
+        ElementInfo array = ti.getElementInfo(arrayRef);
+        if (array.isShared()) {
+            blacklistAndResetRecording("shared array access");
+            return;
+        }
+        top.context.addArrayLength(array);
+        for (int index = 0; index < array.arrayLength(); index++) {
+            if (!top.mods.containsArrayElement(arrayRef, index)) {
+                top.context.addArrayElement(array, index);
             }
-        } else if (executedInsn instanceof EXECUTENATIVE) {
-            if (nativeWhiteList.contains(mi.getName())) {
-                return;
+        }
+    }
+
+    private static ElementInfo fieldOwner(ThreadInfo ti, FieldInfo fi) {
+        if (fi.isStatic()) {
+            return fi.getClassInfo().getStaticElementInfo();
+        }
+        return ti.getElementInfo(ti.getTopFrame().getThis());
+    }
+
+    /**
+     * Records the field access that {@code finsn} has just made, {@code next} is the
+     * instruction that is executed after it.
+     */
+    void fieldAccessed(ThreadInfo ti, FieldInstruction finsn, Instruction next) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (recording.isEmpty() || top == null)
+            return;
+
+        if (finsn.isRead()) {
+            handleReadInstruction(ti, top, finsn, next);
+        } else {
+            handleWriteInstruction(top, finsn);
+        }
+    }
+
+    /**
+     * Records the element access that {@code insn} has just made, {@code arrayRef}
+     * and {@code index} are the ones it used.
+     */
+    void arrayAccessed(ThreadInfo ti, JVMArrayElementInstruction insn, int arrayRef, int index) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (recording.isEmpty() || top == null)
+            return;
+
+        // local arrays are not part of the summary
+        if (top.mods.isNewObject(arrayRef)) {
+            return;
+        }
+
+        ElementInfo array = ti.getElementInfo(arrayRef);
+        // the access has thrown a NullPointerException
+        if (array == null) {
+            return;
+        }
+
+        if (array.isShared()) {
+            blacklistAndResetRecording("shared array access");
+            return;
+        }
+
+        // an ArrayIndexOutOfBoundsException depends on the length only
+        if (index < 0 || index >= array.arrayLength()) {
+            top.context.addArrayLength(array);
+            return;
+        }
+
+        if (insn instanceof ArrayLoadInstruction) {
+            counterContainer.addReadCount(top.methodId);
+            // elements that were written before were not read from the caller's state
+            if (!top.mods.containsArrayElement(arrayRef, index)) {
+                top.context.addArrayElement(array, index);
             }
-            blacklistAndResetRecording("native method");
-        } else if (executedInsn instanceof FieldInstruction) {
-            String methodName = mi.getFullName();
-            if (!recording.contains(methodName))
-                return;
+        } else {
+            counterContainer.addWriteCount(top.methodId);
+            top.mods.addArrayElement(array, index);
+            top.context.addArrayLength(array);
+        }
+    }
 
-            FieldInstruction finsn = (FieldInstruction) executedInsn;
-            if (finsn.isRead()) {
-                handleReadInstruction(methodName, finsn);
-            } else {
-                handleWriteInstruction(methodName, finsn);
+    /**
+     * Records that an ARRAYLENGTH is about to read the length of {@code arrayRef}.
+     */
+    void arrayLengthRead(ThreadInfo ti, int arrayRef) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (recording.isEmpty() || top == null)
+            return;
+
+        // the length of local arrays is fixed by the invocation, null throws
+        if (arrayRef == MJIEnv.NULL || top.mods.isNewObject(arrayRef)) {
+            return;
+        }
+
+        ElementInfo array = ti.getElementInfo(arrayRef);
+        if (array.isShared()) {
+            blacklistAndResetRecording("shared array access");
+            return;
+        }
+        counterContainer.addReadCount(top.methodId);
+        top.context.addArrayLength(array);
+    }
+
+    /**
+     * Notes the object or array that a NEW, NEWARRAY, ANEWARRAY or MULTIANEWARRAY has
+     * just allocated. It is local to the recorded invocations, if it escapes the summary
+     * allocates a copy of it.
+     */
+    void objectAllocated(ThreadInfo ti, Instruction insn, Instruction nextInsn) {
+        RecordingStack.Frame top = recordingStack.peek();
+        if (recording.isEmpty() || top == null)
+            return;
+
+        // the allocation has thrown an exception, or NEW re-executes after <clinit>
+        if (nextInsn != insn.getNext()) {
+            return;
+        }
+        addNewObject(top.mods, ti, ti.getTopFrame().peek());
+    }
+
+    private void addNewObject(MethodModifications mods, ThreadInfo ti, int objRef) {
+        ElementInfo ei = ti.getElementInfo(objRef);
+        if (ei == null) {
+            return;
+        }
+        mods.addNewObject(objRef);
+        // MULTIANEWARRAY allocates the sub arrays as well
+        if (ei.isArray() && ArrayElements.elementType(ei) == '[') {
+            for (int i = 0; i < ei.arrayLength(); i++) {
+                addNewObject(mods, ti, ei.getReferenceElement(i));
+            }
+        }
+    }
+
+    /**
+     * Drops the frames at or above the given depth, their methods were left
+     * without a return so there is nothing to store, but whatever they
+     * read and wrote is still passed on to the callers.
+     */
+    private void discardFrames(int depth) {
+        RecordingStack.Frame top = recordingStack.peek();
+        while (top != null && top.depth >= depth) {
+            recordingStack.pop();
+            if (top.recording && !recordingStack.isRecording(top.methodId)) {
+                recording.clear(top.methodId);
             }
+            top = recordingStack.peek();
         }
     }
 
-    private void handleWriteInstruction(String methodName, FieldInstruction finsn) {
-        counterContainer.addWriteCount(methodName);
+    private void handleWriteInstruction(RecordingStack.Frame top, FieldInstruction finsn) {
+        counterContainer.addWriteCount(top.methodId);
 
         ElementInfo ei = finsn.getLastElementInfo();
         FieldInfo fi = finsn.getFieldInfo();
@@ -363,39 +730,29 @@ public class SummaryCreator extends RecordingListener {
         int storageOffset = fi.getStorageOffset();
         assert (storageOffset != -1);
 
+        recordWrite(top, fi, ei);
+    }
+
+    private void recordWrite(RecordingStack.Frame top, FieldInfo fi, ElementInfo ei) {
         if (ei.isShared()) {
             blacklistAndResetRecording("shared field write");
             return;
         }
 
-        if (fi.getTypeCode() == Types.T_ARRAY) {
-            blacklistAndResetRecording("array field");
+        // the state of new objects is captured when the invocation returns
+        if (top.mods.isNewObject(ei.getObjectRef())) {
             return;
         }
 
-        String type = fi.getType();
-        Object valueObject = ei.getFieldValueObject(fi.getName());
-
-        if (fi.isReference()) {
-            type = "#objectReference";
-            valueObject = ei.getReferenceField(fi.getName());
-        }
-
-        if (finsn instanceof PUTFIELD) {
-            for (String stackMethodName : recording) {
-                modificationMap.get(stackMethodName).get(0).addField(finsn.getFieldName(), type, ei, valueObject);
-            }
-
-        } else if (finsn instanceof PUTSTATIC) {
-            for (String stackMethodName : recording) {
-                modificationMap.get(stackMethodName).get(0).addStaticField(finsn.getFieldName(), type, fi.getClassInfo(), valueObject);
-            }
-
+        if (fi.isStatic()) {
+            top.mods.addStaticField(fi, ei);
+        } else {
+            top.mods.addField(fi, ei);
         }
     }
 
-    private void handleReadInstruction(String methodName, FieldInstruction finsn) {
-        counterContainer.addReadCount(methodName);
+    private void handleReadInstruction(ThreadInfo ti, RecordingStack.Frame top, FieldInstruction finsn, Instruction next) {
+        counterContainer.addReadCount(top.methodId);
 
         FieldInfo fi;
         try {
@@ -410,75 +767,112 @@ public class SummaryCreator extends RecordingListener {
         int storageOffset = fi.getStorageOffset();
         assert (storageOffset != -1);
 
+        // next is something else if the read initialised the class or threw
+        BranchCondition condition = null;
+        if (predicates && next == finsn.getNext() && BranchCondition.appliesTo(fi)) {
+            condition = BranchCondition.of(finsn, ti.getTopFrame());
+        }
+        recordRead(top, fi, ei, condition);
+    }
+
+    // condition is the comparison the value is used in, null if it is used otherwise
+    private void recordRead(RecordingStack.Frame top, FieldInfo fi, ElementInfo ei, BranchCondition condition) {
+        // new objects don't depend on the state before the invocation
+        if (top.mods.isNewObject(ei.getObjectRef())) {
+            return;
+        }
+
         if (ei.isShared()) {
             blacklistAndResetRecording("shared field read");
             return;
         }
 
-        if (fi.getTypeCode() == Types.T_ARRAY) {
-            blacklistAndResetRecording("array field");
-            return;
+        // the context propagates to the recording callers on return
+        if (fi.isStatic()) {
+            top.context.addStaticField(fi, ei, condition);
+        } else {
+            top.context.addField(fi, ei, condition);
         }
+    }
 
-        if (finsn instanceof GETFIELD) {
-            // propagate context to all recording methods
-            for (String stackMethodName : recording) {
-                if (!contextMap.get(stackMethodName).get(0).containsField(finsn.getFieldName(), ei)) {
-                    contextMap.get(stackMethodName).get(0).addField(finsn.getFieldName(), ei, ei.getFieldValueObject(fi.getName()));
-                }
+    private void completeRecording(ThreadInfo ti, RecordingStack.Frame frame, MethodInfo mi, Object returnValue) {
+        int methodId = frame.methodId;
+        frame.mods.setReturnValue(returnValue);
+        if (frame.branchPoint != null) {
+            // one branch of the recording, the summary is stored once all of them are explored
+            if (frame.mods.captureAllocations(ti)) {
+                frame.branchPoint.complete(frame.depth, frame.context, frame.mods);
+                RecordingStack.release(frame);
             }
-        } else if (finsn instanceof GETSTATIC) {
-            for (String stackMethodName : recording) {
-                if (!contextMap.get(stackMethodName).get(0).containsStaticField(finsn.getFieldName()))
-                    contextMap.get(stackMethodName).get(0).addStaticField(finsn.getFieldName(), fi.getClassInfo(), ei.getFieldValueObject(fi.getName()));
+            if (!recordingStack.isRecording(methodId)) {
+                recording.clear(methodId);
             }
+            counterContainer.addRecordedMethod(methodId);
+            return;
         }
-    }
-
-    private void completeRecording(String methodName, Object returnValue) {
-        MethodModifications mods = modificationMap.get(methodName).remove(0);
-        mods.setReturnValue(returnValue);
-        if (container.canStoreMoreSummaries(methodName)) {
-            MethodContext context = contextMap.get(methodName).remove(0);
-            container.addSummary(methodName, context, mods);
+        if (container.canStoreMoreSummaries(methodId) && frame.mods.captureAllocations(ti)) {
+            if (container.isStructural()) {
+                frame.context.captureStructure(ti, frame.mods);
+            } else {
+                frame.context.detachReceiver(ti, frame.mods);
+            }
+            container.addSummary(methodId, frame.context, frame.mods);
+            RecordingStack.release(frame);
+            if (store != null) {
+                store.noteMethod(mi, methodId);
+            }
         }
 
-        if(modificationMap.get(methodName).size() == 0) {
-            recorded.add(methodName);
-            recording.remove(methodName);
+        if (!recordingStack.isRecording(methodId)) {
+            recorded.set(methodId);
+            recording.clear(methodId);
         }
-        counterContainer.addRecordedMethod(methodName);
+        counterContainer.addRecordedMethod(methodId);
     }
 
-    private boolean methodStopsRecording(MethodInfo mi, String methodName) {
-        if (mi.getReturnTypeCode() == Types.T_ARRAY) {
-            blacklistAndResetRecording("array type");
-            return true;
-        }
-
-        if (mi.getName().equals("<init>")) {
-            blacklistAndResetRecording("<init>");
-            return true;
+    @Override
+    void branchesExplored(BranchPoint branchPoint) {
+        for (int i = 0; i < branchPoint.size(); i++) {
+            if (!branchPoint.isComplete(i)) {
+                continue;
+            }
+            int methodId = branchPoint.getMethodId(i);
+            if (container.canStoreMoreSummaries(methodId)) {
+                container.addSummary(methodId, branchPoint.getContext(i), branchPoint.getBranches(i), branchPoint.getChoices());
+            }
+            recorded.set(methodId);
         }
+    }
 
+    private boolean methodStopsRecording(MethodInfo mi, int methodId) {
         if (mi.getName().equals("<clinit>")) {
             blacklistAndResetRecording("<clinit>");
             return true;
         }
-        return blacklistedOrSynthetic(mi, methodName);
+        return blacklistedOrSynthetic(mi, methodId);
     }
 
-    private boolean blacklistedOrSynthetic(MethodInfo mi, String methodName) {
+    private boolean blacklistedOrSynthetic(MethodInfo mi, int methodId) {
+        // the name based checks only need to be done once per method
+        if (!screened.get(methodId)) {
+            screened.set(methodId);
+            // methodName will match the full names in blackListedNames,
+            // getName() is used for the manually entered simple names
+            String methodName = methodIds.getName(methodId);
+            if (blackListedNames.contains(methodName)
+                    || blackListedNames.contains(mi.getName())
+                    || methodName.contains("$$")
+                    // the data choices of Verify are recorded as branches, its other methods control the search
+                    || (methodName.contains("Verify") && nativeEffects.get(mi, methodId) == null)
+                    // gov.nasa.jpf.test.java.concurrent.ExecutorServiceTest and CountDownLatchTest
+                    || methodName.contains("java.util.concurrent.locks")
+                    || methodName.contains("reflect")) {
+                blackList.set(methodId);
+            }
+        }
+
         // if a method is blacklisted, or is a synthetic method
-        // methodName will match mi.getFullName,
-        // getName() is used for the manually entered names
-        if (blackList.contains(methodName)
-                || blackList.contains(mi.getName())
-                || methodName.contains("$$")
-                || methodName.contains("Verify")
-                // gov.nasa.jpf.test.java.concurrent.ExecutorServiceTest and CountDownLatchTest
-                || methodName.contains("java.util.concurrent.locks")
-                || methodName.contains("reflect")) {
+        if (blackList.get(methodId)) {
             blacklistAndResetRecording("blacklisted");
             return true;
         }
@@ -492,6 +886,15 @@ public class SummaryCreator extends RecordingListener {
     public void searchStarted(Search search) {
         out.println("----------------------------------- search started");
         reinitialise();
+        if (instructionMode) {
+            // the instructions call the hooks, so per-instruction notifications are not needed.
+            // Locks are handled by the instructions, choice generators end the transition
+            // and with it the recording in stateAdvanced
+            search.getVM().removeListener(this);
+        }
+        if (store != null) {
+            store.load();
+        }
         if (skipInit) {
             ThreadInfo tiCurrent = ThreadInfo.getCurrentThread();
             miMain = tiCurrent.getEntryMethod();
@@ -499,8 +902,19 @@ public class SummaryCreator extends RecordingListener {
         }
     }
 
+    @Override
+    public void stateAdvanced(Search search) {
+        super.stateAdvanced(search);
+        if (store != null) {
+            store.checkpointIfDue(container);
+        }
+    }
+
     @Override
     public void searchFinished(Search search) {
+        if (store != null) {
+            store.save(container);
+        }
         out.println("----------------------------------- search finished");
         out.println();
         out.println(counterContainer.getMethodStatistics());
@@ -0,0 +1,710 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.jvm.bytecode.*;
+import gov.nasa.jpf.vm.ElementInfo;
+import gov.nasa.jpf.vm.Instruction;
+import gov.nasa.jpf.vm.MethodInfo;
+import gov.nasa.jpf.vm.NativeMethodInfo;
+import gov.nasa.jpf.vm.ThreadInfo;
+import gov.nasa.jpf.vm.bytecode.FieldInstruction;
+
+/**
+ * Instruction factory for summary.mode=instructions. Only the instructions that
+ * matter to summaries (invocations, returns, throws, field and array
+ * accesses, allocations) call into the {@link SummaryCreator}, all other bytecodes
+ * run without listener notifications.
+ * <p>
+ * Enabled with
+ * <pre>
+ * jvm.insn_factory.class=gov.nasa.jpf.SummaryInstructionFactory
+ * summary.mode=instructions
+ * </pre>
+ */
+public class SummaryInstructionFactory extends InstructionFactory {
+
+    public SummaryInstructionFactory() {
+    }
+
+    @Override
+    public Instruction invokevirtual(String clsName, String methodName, String methodSignature) {
+        return new SummaryINVOKEVIRTUAL(clsName, methodName, methodSignature);
+    }
+
+    @Override
+    public Instruction invokespecial(String clsName, String methodName, String methodSignature) {
+        return new SummaryINVOKESPECIAL(clsName, methodName, methodSignature);
+    }
+
+    @Override
+    public Instruction invokestatic(String clsName, String methodName, String methodSignature) {
+        return new SummaryINVOKESTATIC(clsName, methodName, methodSignature);
+    }
+
+    @Override
+    public Instruction invokeinterface(String clsName, String methodName, String methodSignature) {
+        return new SummaryINVOKEINTERFACE(clsName, methodName, methodSignature);
+    }
+
+    @Override
+    public Instruction return_() {
+        return new SummaryRETURN();
+    }
+
+    @Override
+    public Instruction ireturn() {
+        return new SummaryIRETURN();
+    }
+
+    @Override
+    public Instruction lreturn() {
+        return new SummaryLRETURN();
+    }
+
+    @Override
+    public Instruction freturn() {
+        return new SummaryFRETURN();
+    }
+
+    @Override
+    public Instruction dreturn() {
+        return new SummaryDRETURN();
+    }
+
+    @Override
+    public Instruction areturn() {
+        return new SummaryARETURN();
+    }
+
+    @Override
+    public Instruction nativereturn() {
+        return new SummaryNATIVERETURN();
+    }
+
+    @Override
+    public Instruction getfield(String fieldName, String clsName, String fieldDescriptor) {
+        return new SummaryGETFIELD(fieldName, clsName, fieldDescriptor);
+    }
+
+    @Override
+    public Instruction putfield(String fieldName, String clsName, String fieldDescriptor) {
+        return new SummaryPUTFIELD(fieldName, clsName, fieldDescriptor);
+    }
+
+    @Override
+    public Instruction getstatic(String fieldName, String clsName, String fieldDescriptor) {
+        return new SummaryGETSTATIC(fieldName, clsName, fieldDescriptor);
+    }
+
+    @Override
+    public Instruction putstatic(String fieldName, String clsName, String fieldDescriptor) {
+        return new SummaryPUTSTATIC(fieldName, clsName, fieldDescriptor);
+    }
+
+    @Override
+    public Instruction arraylength() {
+        return new SummaryARRAYLENGTH();
+    }
+
+    @Override
+    public Instruction iaload() {
+        return new SummaryIALOAD();
+    }
+
+    @Override
+    public Instruction laload() {
+        return new SummaryLALOAD();
+    }
+
+    @Override
+    public Instruction faload() {
+        return new SummaryFALOAD();
+    }
+
+    @Override
+    public Instruction daload() {
+        return new SummaryDALOAD();
+    }
+
+    @Override
+    public Instruction aaload() {
+        return new SummaryAALOAD();
+    }
+
+    @Override
+    public Instruction baload() {
+        return new SummaryBALOAD();
+    }
+
+    @Override
+    public Instruction caload() {
+        return new SummaryCALOAD();
+    }
+
+    @Override
+    public Instruction saload() {
+        return new SummarySALOAD();
+    }
+
+    @Override
+    public Instruction iastore() {
+        return new SummaryIASTORE();
+    }
+
+    @Override
+    public Instruction lastore() {
+        return new SummaryLASTORE();
+    }
+
+    @Override
+    public Instruction fastore() {
+        return new SummaryFASTORE();
+    }
+
+    @Override
+    public Instruction dastore() {
+        return new SummaryDASTORE();
+    }
+
+    @Override
+    public Instruction aastore() {
+        return new SummaryAASTORE();
+    }
+
+    @Override
+    public Instruction bastore() {
+        return new SummaryBASTORE();
+    }
+
+    @Override
+    public Instruction castore() {
+        return new SummaryCASTORE();
+    }
+
+    @Override
+    public Instruction sastore() {
+        return new SummarySASTORE();
+    }
+
+    @Override
+    public Instruction new_(String clsName) {
+        return new SummaryNEW(clsName);
+    }
+
+    @Override
+    public Instruction newarray(int typeCode) {
+        return new SummaryNEWARRAY(typeCode);
+    }
+
+    @Override
+    public Instruction anewarray(String clsName) {
+        return new SummaryANEWARRAY(clsName);
+    }
+
+    @Override
+    public Instruction multianewarray(String clsName, int dimensions) {
+        return new SummaryMULTIANEWARRAY(clsName, dimensions);
+    }
+
+    @Override
+    public Instruction athrow() {
+        return new SummaryATHROW();
+    }
+
+    @Override
+    public Instruction executenative(NativeMethodInfo mi) {
+        return new SummaryEXECUTENATIVE(mi);
+    }
+
+    @Override
+    public Instruction monitorenter() {
+        return new SummaryMONITORENTER();
+    }
+
+    @Override
+    public Instruction monitorexit() {
+        return new SummaryMONITOREXIT();
+    }
+
+
+    // the hooks shared by the instructions below, they do what the
+    // listener does in executeInstruction and instructionExecuted
+
+    private static SummaryCreator hooks(Instruction insn, ThreadInfo ti) {
+        SummaryCreator summaries = SummaryCreator.active;
+        if (summaries == null || summaries.skipping(insn.getMethodInfo())) {
+            return null;
+        }
+        summaries.select(ti);
+        return summaries;
+    }
+
+    private static Instruction invoke(JVMInvokeInstruction call, ThreadInfo ti, Instruction next) {
+        SummaryCreator summaries = hooks(call, ti);
+        if (summaries != null) {
+            // invoked also records the lock of a synchronized method
+            summaries.invoked(ti.getVM(), ti, call, next);
+        }
+        return next;
+    }
+
+    private static Instruction returned(JVMReturnInstruction ret, ThreadInfo ti, Instruction next) {
+        SummaryCreator summaries = hooks(ret, ti);
+        if (summaries != null) {
+            MethodInfo mi = ret.getMethodInfo();
+            if (mi.isSynchronized()) {
+                summaries.lockReleased(ti, lockOf(ti, mi, ret.getReturnFrame().getThis()));
+            }
+            summaries.returned(ti, ret);
+        }
+        return next;
+    }
+
+    // the object a synchronized method locks, its class object if it is static
+    private static ElementInfo lockOf(ThreadInfo ti, MethodInfo mi, int thisRef) {
+        return ti.getElementInfo(mi.isStatic() ? mi.getClassInfo().getClassObjectRef() : thisRef);
+    }
+
+    private static Instruction fieldAccessed(FieldInstruction finsn, ThreadInfo ti, Instruction next) {
+        SummaryCreator summaries = hooks(finsn, ti);
+        if (summaries != null) {
+            summaries.fieldAccessed(ti, finsn, next);
+        }
+        return next;
+    }
+
+    private static Instruction arrayAccessed(JVMArrayElementInstruction insn, ThreadInfo ti, int arrayRef, int index, Instruction next) {
+        SummaryCreator summaries = hooks(insn, ti);
+        if (summaries != null) {
+            summaries.arrayAccessed(ti, insn, arrayRef, index);
+        }
+        return next;
+    }
+
+    private static Instruction objectAllocated(Instruction insn, ThreadInfo ti, Instruction next) {
+        SummaryCreator summaries = hooks(insn, ti);
+        if (summaries != null) {
+            summaries.objectAllocated(ti, insn, next);
+        }
+        return next;
+    }
+
+    private static Instruction exceptionThrown(ATHROW insn, ThreadInfo ti, int exceptionRef, Instruction next) {
+        SummaryCreator summaries = hooks(insn, ti);
+        if (summaries != null) {
+            summaries.exceptionThrown(ti, exceptionRef);
+        }
+        return next;
+    }
+
+    private static Instruction summaryApplied(JVMInvokeInstruction call, ThreadInfo ti) {
+        SummaryCreator summaries = hooks(call, ti);
+        return summaries == null ? null : summaries.summaryApplied(ti.getVM(), ti, call);
+    }
+
+
+    static class SummaryINVOKEVIRTUAL extends INVOKEVIRTUAL {
+        SummaryINVOKEVIRTUAL(String clsName, String methodName, String methodSignature) {
+            super(clsName, methodName, methodSignature);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = summaryApplied(this, ti);
+            if (next != null) {
+                return next;
+            }
+            return invoke(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryINVOKESPECIAL extends INVOKESPECIAL {
+        SummaryINVOKESPECIAL(String clsName, String methodName, String methodSignature) {
+            super(clsName, methodName, methodSignature);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = summaryApplied(this, ti);
+            if (next != null) {
+                return next;
+            }
+            return invoke(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryINVOKESTATIC extends INVOKESTATIC {
+        SummaryINVOKESTATIC(String clsName, String methodName, String methodSignature) {
+            super(clsName, methodName, methodSignature);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = summaryApplied(this, ti);
+            if (next != null) {
+                return next;
+            }
+            return invoke(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryINVOKEINTERFACE extends INVOKEINTERFACE {
+        SummaryINVOKEINTERFACE(String clsName, String methodName, String methodSignature) {
+            super(clsName, methodName, methodSignature);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = summaryApplied(this, ti);
+            if (next != null) {
+                return next;
+            }
+            return invoke(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryRETURN extends RETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryIRETURN extends IRETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryLRETURN extends LRETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryFRETURN extends FRETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryDRETURN extends DRETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryARETURN extends ARETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryNATIVERETURN extends NATIVERETURN {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return returned(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryGETFIELD extends GETFIELD {
+        SummaryGETFIELD(String fieldName, String clsName, String fieldDescriptor) {
+            super(fieldName, clsName, fieldDescriptor);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return fieldAccessed(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryPUTFIELD extends PUTFIELD {
+        SummaryPUTFIELD(String fieldName, String clsName, String fieldDescriptor) {
+            super(fieldName, clsName, fieldDescriptor);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return fieldAccessed(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryGETSTATIC extends GETSTATIC {
+        SummaryGETSTATIC(String fieldName, String clsName, String fieldDescriptor) {
+            super(fieldName, clsName, fieldDescriptor);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return fieldAccessed(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryPUTSTATIC extends PUTSTATIC {
+        SummaryPUTSTATIC(String fieldName, String clsName, String fieldDescriptor) {
+            super(fieldName, clsName, fieldDescriptor);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return fieldAccessed(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryARRAYLENGTH extends ARRAYLENGTH {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // the array is popped by the execution
+            SummaryCreator summaries = hooks(this, ti);
+            if (summaries != null) {
+                summaries.arrayLengthRead(ti, ti.getTopFrame().peek());
+            }
+            return super.execute(ti);
+        }
+    }
+
+    static class SummaryIALOAD extends IALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryLALOAD extends LALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryFALOAD extends FALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryDALOAD extends DALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryAALOAD extends AALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryBALOAD extends BALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryCALOAD extends CALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummarySALOAD extends SALOAD {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryIASTORE extends IASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryLASTORE extends LASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryFASTORE extends FASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryDASTORE extends DASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryAASTORE extends AASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryBASTORE extends BASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryCASTORE extends CASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummarySASTORE extends SASTORE {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // arrayRef and index are set by the execution
+            Instruction next = super.execute(ti);
+            return arrayAccessed(this, ti, arrayRef, index, next);
+        }
+    }
+
+    static class SummaryNEW extends NEW {
+        SummaryNEW(String clsName) {
+            super(clsName);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return objectAllocated(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryNEWARRAY extends NEWARRAY {
+        SummaryNEWARRAY(int typeCode) {
+            super(typeCode);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return objectAllocated(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryANEWARRAY extends ANEWARRAY {
+        SummaryANEWARRAY(String clsName) {
+            super(clsName);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return objectAllocated(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryMULTIANEWARRAY extends MULTIANEWARRAY {
+        SummaryMULTIANEWARRAY(String clsName, int dimensions) {
+            super(clsName, dimensions);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            return objectAllocated(this, ti, super.execute(ti));
+        }
+    }
+
+    static class SummaryATHROW extends ATHROW {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            // the operand stack is gone once the exception is thrown
+            int exceptionRef = ti.getTopFrame().peek();
+            return exceptionThrown(this, ti, exceptionRef, super.execute(ti));
+        }
+    }
+
+    static class SummaryEXECUTENATIVE extends EXECUTENATIVE {
+        SummaryEXECUTENATIVE(NativeMethodInfo mi) {
+            super(mi);
+        }
+
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            SummaryCreator summaries = hooks(this, ti);
+            if (summaries != null) {
+                summaries.nativeInvoked(ti, getMethodInfo());
+            }
+            Instruction next = super.execute(ti);
+            if (summaries != null) {
+                summaries.nativeExecuted(ti, getMethodInfo());
+            }
+            return next;
+        }
+    }
+
+    // the listener checks whether the lock is contended when an object is locked or unlocked
+
+    static class SummaryMONITORENTER extends MONITORENTER {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = super.execute(ti);
+            // a blocked MONITORENTER is executed again once the lock is free
+            if (SummaryCreator.active != null && next != this) {
+                SummaryCreator.active.lockAcquired(ti, ti.getElementInfo(getLastLockRef()));
+            }
+            return next;
+        }
+    }
+
+    static class SummaryMONITOREXIT extends MONITOREXIT {
+        @Override
+        public Instruction execute(ThreadInfo ti) {
+            Instruction next = super.execute(ti);
+            if (SummaryCreator.active != null) {
+                SummaryCreator.active.lockReleased(ti, ti.getElementInfo(getLastLockRef()));
+            }
+            return next;
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package gov.nasa.jpf;
+
+import gov.nasa.jpf.vm.ClassInfo;
+import gov.nasa.jpf.vm.ClassLoaderInfo;
+import gov.nasa.jpf.vm.FieldInfo;
+import gov.nasa.jpf.vm.MethodInfo;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * On-disk store that keeps summaries between JPF runs.
+ * Entries are keyed by the method name and a hash of the declaring class file. They also
+ * keep hashes of the other class files the summary depends on, the classes whose code ran
+ * while it was recorded and those of the static fields it reads and writes. Entries whose
+ * class files have changed are dropped when the method is first invoked.
+ * Only summaries that don't refer to heap objects can be stored, i.e. static methods
+ * with primitive or String arguments that depend on and modify static fields.
+ */
+class SummaryStore {
+    private static final int MAGIC = 0x4A505353;
+    private static final int VERSION = 6;
+    private static final long NO_HASH = 0;
+
+    private final Path path;
+    private final long checkpointInterval;
+    private long lastCheckpoint;
+
+    // entries read from disk that have not been added to the container yet
+    private Map<String, List<StoredEntry>> pending;
+    // the pending entries of methods that have been invoked, but couldn't be restored yet
+    private Map<Integer, List<StoredEntry>> unresolved;
+    // methods for which pending has been checked
+    private BitSet seen;
+    // hash of the declaring class file, for each method with stored summaries
+    private Map<Integer, Long> methodHashes;
+    // keyed by the class file URL
+    private Map<String, Long> classHashes;
+
+    private static class StoredEntry {
+        final long classHash;
+        // the other class files the summary depends on, and their hashes
+        final String[] classFiles;
+        final long[] classFileHashes;
+        final ByteBuffer body;
+
+        StoredEntry(long classHash, String[] classFiles, long[] classFileHashes, ByteBuffer body) {
+            this.classHash = classHash;
+            this.classFiles = classFiles;
+            this.classFileHashes = classFileHashes;
+            this.body = body;
+        }
+    }
+
+    SummaryStore(Config config) {
+        //  @jpfoption summary.store : String - file that summaries are loaded from and saved to (default=none).
+        path = Paths.get(config.getString("summary.store"));
+        //  @jpfoption summary.store.checkpoint : int - seconds between saves during the search (default=60).
+        checkpointInterval = config.getInt("summary.store.checkpoint", 60) * 1000L;
+        pending = new HashMap<>();
+        unresolved = new HashMap<>();
+        seen = new BitSet();
+        methodHashes = new HashMap<>();
+        classHashes = new HashMap<>();
+    }
+
+    static SummaryStore create(Config config) {
+        if (config.getString("summary.store") == null) {
+            return null;
+        }
+        return new SummaryStore(config);
+    }
+
+    void load() {
+        pending = new HashMap<>();
+        unresolved = new HashMap<>();
+        seen = new BitSet();
+        methodHashes = new HashMap<>();
+        lastCheckpoint = System.currentTimeMillis();
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 12 || in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return;
+            }
+            int entries = in.getInt();
+            for (int i = 0; i < entries; i++) {
+                String methodName = readString(in);
+                long classHash = in.getLong();
+                String[] classFiles = new String[in.getInt()];
+                long[] classFileHashes = new long[classFiles.length];
+                for (int j = 0; j < classFiles.length; j++) {
+                    classFiles[j] = readString(in);
+                    classFileHashes[j] = in.getLong();
+                }
+                int length = in.getInt();
+                ByteBuffer body = in.slice();
+                body.limit(length);
+                in.position(in.position() + length);
+                pending.computeIfAbsent(methodName, k -> new ArrayList<>())
+                        .add(new StoredEntry(classHash, classFiles, classFileHashes, body));
+            }
+        } catch (IOException | RuntimeException e) {
+            // a damaged store only costs us the summaries in it
+            pending = new HashMap<>();
+        }
+    }
+
+    /**
+     * Moves the stored summaries of the invoked method into the container,
+     * as long as the class files they depend on are unchanged.
+     */
+    void restore(MethodInfo mi, int methodId, SummaryContainer container) {
+        List<StoredEntry> entries;
+        if (!seen.get(methodId)) {
+            seen.set(methodId);
+            entries = pending.remove(container.getMethodName(methodId));
+        } else if (!unresolved.isEmpty()) {
+            entries = unresolved.remove(methodId);
+        } else {
+            return;
+        }
+        if (entries == null) {
+            return;
+        }
+
+        long classHash = getClassFileHash(mi.getClassInfo());
+        Iterator<StoredEntry> it = entries.iterator();
+        while (it.hasNext()) {
+            StoredEntry entry = it.next();
+            if (entry.classHash != classHash || classHash == NO_HASH || !classFilesUnchanged(entry)) {
+                // stale
+                it.remove();
+                continue;
+            }
+
+            ByteBuffer body = entry.body.duplicate();
+            try {
+                MethodContext context = MethodContext.read(body, container.getLoadedArguments(methodId));
+                // written again with the summary, and passed on to the summaries it is applied in
+                for (String classFile : entry.classFiles) {
+                    context.addStoredClassFile(classFile);
+                }
+                MethodModifications mods = MethodModifications.read(body);
+                if (container.canStoreMoreSummaries(methodId)) {
+                    container.addSummary(methodId, context, mods);
+                }
+                it.remove();
+            } catch (UnresolvedClassException e) {
+                // a class the summary refers to isn't initialized yet, try again on the next call
+            } catch (RuntimeException e) {
+                // corrupt entry
+                it.remove();
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            unresolved.put(methodId, entries);
+        }
+        methodHashes.put(methodId, classHash);
+    }
+
+    private boolean classFilesUnchanged(StoredEntry entry) {
+        for (int i = 0; i < entry.classFiles.length; i++) {
+            long hash = getClassFileHash(entry.classFiles[i]);
+            if (hash == NO_HASH || hash != entry.classFileHashes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remembers the class file of a method whose summaries should be saved.
+     */
+    void noteMethod(MethodInfo mi, int methodId) {
+        if (!methodHashes.containsKey(methodId)) {
+            methodHashes.put(methodId, getClassFileHash(mi.getClassInfo()));
+        }
+    }
+
+    void checkpointIfDue(SummaryContainer container) {
+        if (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval) {
+            save(container);
+        }
+    }
+
+    void save(SummaryContainer container) {
+        lastCheckpoint = System.currentTimeMillis();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int entries = 0;
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Map.Entry<String, List<StoredEntry>> methodEntries : pending.entrySet()) {
+                entries += writeEntries(out, methodEntries.getKey(), methodEntries.getValue());
+            }
+            for (Map.Entry<Integer, List<StoredEntry>> methodEntries : unresolved.entrySet()) {
+                entries += writeEntries(out, container.getMethodName(methodEntries.getKey()), methodEntries.getValue());
+            }
+
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream(bodyBytes);
+            Set<String> classFiles = new LinkedHashSet<>();
+            for (int methodId = 0; methodId < container.getMethodIdLimit(); methodId++) {
+                Long classHash = methodHashes.get(methodId);
+                if (classHash == null || classHash == NO_HASH) {
+                    continue;
+                }
+                String methodName = container.getMethodName(methodId);
+                for (MethodSummary summary : container.getSummaries(methodId)) {
+                    if (summary.branches != null || !summary.context.isPersistable() || !summary.mods.isPersistable()) {
+                        continue;
+                    }
+                    classFiles.clear();
+                    if (!summary.context.collectClassFiles(classFiles) || !summary.mods.collectClassFiles(classFiles)) {
+                        continue;
+                    }
+                    String[] files = classFiles.toArray(new String[0]);
+                    long[] hashes = new long[files.length];
+                    boolean hashed = true;
+                    for (int i = 0; i < files.length; i++) {
+                        hashes[i] = getClassFileHash(files[i]);
+                        hashed &= hashes[i] != NO_HASH;
+                    }
+                    if (!hashed) {
+                        continue;
+                    }
+                    bodyBytes.reset();
+                    summary.context.write(body);
+                    summary.mods.write(body);
+                    body.flush();
+                    writeEntry(out, methodName, classHash, files, hashes, bodyBytes.toByteArray());
+                    entries++;
+                }
+            }
+        } catch (IOException e) {
+            throw new JPFException("could not serialize summaries", e);
+        }
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries);
+            bytes.writeTo(out);
+        } catch (IOException e) {
+            throw new JPFException("could not write summary store " + tmp, e);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new JPFException("could not replace summary store " + path, e);
+        }
+    }
+
+    private static int writeEntries(DataOutputStream out, String methodName, List<StoredEntry> entries) throws IOException {
+        for (StoredEntry entry : entries) {
+            ByteBuffer body = entry.body.duplicate();
+            byte[] raw = new byte[body.remaining()];
+            body.get(raw);
+            writeEntry(out, methodName, entry.classHash, entry.classFiles, entry.classFileHashes, raw);
+        }
+        return entries.size();
+    }
+
+    private static void writeEntry(DataOutputStream out, String methodName, long classHash,
+                                   String[] classFiles, long[] classFileHashes, byte[] body) throws IOException {
+        writeString(out, methodName);
+        out.writeLong(classHash);
+        out.writeInt(classFiles.length);
+        for (int i = 0; i < classFiles.length; i++) {
+            writeString(out, classFiles[i]);
+            out.writeLong(classFileHashes[i]);
+        }
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    private long getClassFileHash(ClassInfo ci) {
+        return getClassFileHash(ci.getClassFileUrl());
+    }
+
+    private long getClassFileHash(String url) {
+        if (url == null) {
+            return NO_HASH;
+        }
+        Long hash = classHashes.get(url);
+        if (hash == null) {
+            hash = computeClassFileHash(url);
+            classHashes.put(url, hash);
+        }
+        return hash;
+    }
+
+    private static long computeClassFileHash(String url) {
+        if (url == null) {
+            return NO_HASH;
+        }
+
+        try (InputStream in = openClassFile(url)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            long hash = ByteBuffer.wrap(digest.digest()).getLong();
+            return hash == NO_HASH ? 1 : hash;
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return NO_HASH;
+        }
+    }
+
+    private static InputStream openClassFile(String url) throws IOException {
+        try {
+            return new URL(url).openStream();
+        } catch (MalformedURLException e) {
+            // plain path of a class in a directory
+            return Files.newInputStream(Paths.get(url));
+        }
+    }
+
+    /**
+     * Looks up a class that a stored summary refers to, it has to be initialized already.
+     */
+    static ClassInfo resolveClass(String className) {
+        ClassInfo ci;
+        try {
+            ci = ClassLoaderInfo.getCurrentResolvedClassInfo(className);
+        } catch (RuntimeException e) {
+            throw new UnresolvedClassException(className);
+        }
+        if (ci == null || ci.getStaticElementInfo() == null) {
+            throw new UnresolvedClassException(className);
+        }
+        return ci;
+    }
+
+    static FieldInfo resolveStaticField(ClassInfo ci, String fieldName) {
+        FieldInfo fi = ci.getStaticField(fieldName);
+        if (fi == null) {
+            // the stored summary doesn't fit the class, which the class file hash should have caught
+            throw new IllegalStateException("no static field " + fieldName + " in " + ci.getName());
+        }
+        return fi;
+    }
+
+    static class UnresolvedClassException extends RuntimeException {
+        UnresolvedClassException(String className) {
+            super(className, null, false, false);
+        }
+    }
+
+    //--- value encoding shared by MethodContext and MethodModifications
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static boolean isPersistableValue(Object value) {
+        return value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Character;
+    }
+
+    static void writeValue(DataOutput out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte('N');
+        } else if (value instanceof String) {
+            out.writeByte('T');
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte('C');
+            out.writeChar((Character) value);
+        } else if (value instanceof Short) {
+            out.writeByte('S');
+            out.writeShort((Short) value);
+        } else {
+            throw new IllegalArgumentException("can't store value " + value);
+        }
+    }
+
+    static Object readValue(ByteBuffer in) {
+        byte tag = in.get();
+        switch (tag) {
+            case 'N':
+                return null;
+            case 'T':
+                return readString(in);
+            case 'I':
+                return in.getInt();
+            case 'J':
+                return in.getLong();
+            case 'F':
+                return in.getFloat();
+            case 'D':
+                return in.getDouble();
+            case 'Z':
+                return in.get() != 0;
+            case 'B':
+                return in.get();
+            case 'C':
+                return in.getChar();
+            case 'S':
+                return in.getShort();
+            default:
+                throw new IllegalStateException("corrupt summary store, unknown value tag " + tag);
+        }
+    }
+}